@@ -0,0 +1,66 @@
+package com.f2prateek.segment.android;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * A request body that writes a batch of JSON encoded messages to the network as they are, without
+ * decoding them.
+ */
+final class BatchRequestBody extends RequestBody {
+  private static final MediaType MEDIA_TYPE = MediaType.parse("application/json; charset=UTF-8");
+  private static final ByteString BATCH_START = ByteString.encodeUtf8("{\"batch\":[");
+  private static final ByteString SENT_AT_START = ByteString.encodeUtf8("],\"sentAt\":\"");
+  private static final ByteString SENT_AT_END = ByteString.encodeUtf8("\"}");
+
+  final List<byte[]> records;
+  private final ByteString sentAt;
+  private final long contentLength;
+
+  BatchRequestBody(List<byte[]> records, Date sentAt) {
+    this.records = records;
+    Buffer buffer = new Buffer();
+    try {
+      Iso8601Utils.format(sentAt, buffer);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    this.sentAt = buffer.readByteString();
+
+    long contentLength = BATCH_START.size() + SENT_AT_START.size() + this.sentAt.size()
+        + SENT_AT_END.size();
+    for (byte[] record : records) {
+      contentLength += record.length;
+    }
+    // Account for the separators between messages.
+    contentLength += Math.max(0, records.size() - 1);
+    this.contentLength = contentLength;
+  }
+
+  @Override public MediaType contentType() {
+    return MEDIA_TYPE;
+  }
+
+  @Override public long contentLength() {
+    return contentLength;
+  }
+
+  @Override public void writeTo(BufferedSink sink) throws IOException {
+    sink.write(BATCH_START);
+    for (int i = 0, size = records.size(); i < size; i++) {
+      if (i > 0) {
+        sink.writeByte(',');
+      }
+      sink.write(records.get(i));
+    }
+    sink.write(SENT_AT_START);
+    sink.write(sentAt);
+    sink.write(SENT_AT_END);
+  }
+}
@@ -0,0 +1,471 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.AliasMessage;
+import com.f2prateek.segment.model.GroupMessage;
+import com.f2prateek.segment.model.IdentifyMessage;
+import com.f2prateek.segment.model.LayeredMap;
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.ScreenMessage;
+import com.f2prateek.segment.model.TrackMessage;
+import com.squareup.tape2.ObjectQueue;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+
+import static com.f2prateek.segment.android.Utils.isNullOrEmpty;
+
+/**
+ * Stores messages in a compact binary format. Each record starts with a version byte, followed by
+ * the message type and a list of tagged fields terminated by {@link #END}. Strings are UTF-8 and
+ * prefixed with their length, integers are zig-zag varints and timestamps are epoch millis.
+ * <p>
+ * Records written as JSON by {@link MessageObjectQueueConverter} are still read, so existing queues
+ * are migrated as they are drained.
+ * <p>
+ * Context that is layered on top of a shared {@link LayeredMap}, as done by {@link
+ * ContextInterceptor}, is stored as a reference to the shared map in a {@link ContextDictionary}
+ * followed by the layers, rather than repeating the shared map in every record.
+ */
+final class BinaryMessageObjectQueueConverter implements ObjectQueue.Converter<Message> {
+  static final byte VERSION = 1;
+
+  // Message types. These are stored, so they must never change.
+  private static final int TYPE_ALIAS = 1;
+  private static final int TYPE_GROUP = 2;
+  private static final int TYPE_IDENTIFY = 3;
+  private static final int TYPE_SCREEN = 4;
+  private static final int TYPE_TRACK = 5;
+
+  // Message fields. These are stored, so they must never change.
+  private static final int END = 0;
+  private static final int MESSAGE_ID = 1;
+  private static final int TIMESTAMP = 2;
+  private static final int CONTEXT = 3;
+  private static final int INTEGRATIONS = 4;
+  private static final int USER_ID = 5;
+  private static final int ANONYMOUS_ID = 6;
+  private static final int PREVIOUS_ID = 7;
+  private static final int GROUP_ID = 8;
+  private static final int TRAITS = 9;
+  private static final int NAME = 10;
+  private static final int EVENT = 11;
+  private static final int PROPERTIES = 12;
+  private static final int SHARED_CONTEXT = 13;
+
+  // Value types.
+  private static final int VALUE_NULL = 0;
+  private static final int VALUE_FALSE = 1;
+  private static final int VALUE_TRUE = 2;
+  private static final int VALUE_LONG = 3;
+  private static final int VALUE_DOUBLE = 4;
+  private static final int VALUE_STRING = 5;
+  private static final int VALUE_LIST = 6;
+  private static final int VALUE_MAP = 7;
+  private static final int VALUE_FLOAT = 8;
+  /** Any other number, stored as its string so that no precision is lost. */
+  private static final int VALUE_NUMBER = 9;
+
+  @Nullable private final ContextDictionary dictionary;
+
+  BinaryMessageObjectQueueConverter() {
+    this(null);
+  }
+
+  BinaryMessageObjectQueueConverter(@Nullable ContextDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  @Override public Message from(byte[] bytes) throws IOException {
+    if (MessageObjectQueueConverter.isJson(bytes)) {
+      return MessageObjectQueueConverter.fromJson(bytes);
+    }
+    return decode(bytes);
+  }
+
+  @Override public void toStream(Message message, OutputStream bytes) throws IOException {
+    Buffer buffer = new Buffer();
+    encode(message, buffer);
+    buffer.writeTo(bytes);
+  }
+
+  void encode(Message message, Buffer sink) throws IOException {
+    sink.writeByte(VERSION);
+    switch (message.type()) {
+      case alias:
+        sink.writeByte(TYPE_ALIAS);
+        writeStringField(sink, PREVIOUS_ID, ((AliasMessage) message).previousId());
+        break;
+      case group:
+        GroupMessage groupMessage = (GroupMessage) message;
+        sink.writeByte(TYPE_GROUP);
+        writeStringField(sink, GROUP_ID, groupMessage.groupId());
+        writeMapField(sink, TRAITS, groupMessage.traits());
+        break;
+      case identify:
+        sink.writeByte(TYPE_IDENTIFY);
+        writeMapField(sink, TRAITS, ((IdentifyMessage) message).traits());
+        break;
+      case screen:
+        ScreenMessage screenMessage = (ScreenMessage) message;
+        sink.writeByte(TYPE_SCREEN);
+        writeStringField(sink, NAME, screenMessage.name());
+        writeMapField(sink, PROPERTIES, screenMessage.properties());
+        break;
+      case track:
+        TrackMessage trackMessage = (TrackMessage) message;
+        sink.writeByte(TYPE_TRACK);
+        writeStringField(sink, EVENT, trackMessage.event());
+        writeMapField(sink, PROPERTIES, trackMessage.properties());
+        break;
+      default:
+        throw new AssertionError("unknown message type: " + message.type());
+    }
+
+    writeStringField(sink, MESSAGE_ID, message.messageId());
+    Date timestamp = message.timestamp();
+    if (timestamp != null) {
+      sink.writeByte(TIMESTAMP);
+      writeVarLong(sink, timestamp.getTime());
+    }
+    writeContext(sink, message.context());
+    writeMapField(sink, INTEGRATIONS, message.integrations());
+    writeStringField(sink, USER_ID, message.userId());
+    writeStringField(sink, ANONYMOUS_ID, message.anonymousId());
+    sink.writeByte(END);
+  }
+
+  @SuppressWarnings("ConstantConditions") Message decode(byte[] bytes) throws IOException {
+    // Buffered rather than reading the Buffer directly, so truncated records throw EOFException.
+    BufferedSource source = Okio.buffer((Source) new Buffer().write(bytes));
+    int version = source.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported record version: " + version);
+    }
+
+    int type = source.readByte();
+    String messageId = null;
+    Date timestamp = null;
+    Map<String, Object> context = null;
+    Map<String, Object> integrations = null;
+    String userId = null;
+    String anonymousId = null;
+    String previousId = null;
+    String groupId = null;
+    Map<String, Object> traits = null;
+    String name = null;
+    String event = null;
+    Map<String, Object> properties = null;
+
+    for (int field = source.readByte(); field != END; field = source.readByte()) {
+      switch (field) {
+        case MESSAGE_ID:
+          messageId = readString(source);
+          break;
+        case TIMESTAMP:
+          timestamp = new Date(readVarLong(source));
+          break;
+        case CONTEXT:
+          context = readMap(source);
+          break;
+        case SHARED_CONTEXT:
+          context = readSharedContext(source);
+          break;
+        case INTEGRATIONS:
+          integrations = readMap(source);
+          break;
+        case USER_ID:
+          userId = readString(source);
+          break;
+        case ANONYMOUS_ID:
+          anonymousId = readString(source);
+          break;
+        case PREVIOUS_ID:
+          previousId = readString(source);
+          break;
+        case GROUP_ID:
+          groupId = readString(source);
+          break;
+        case TRAITS:
+          traits = readMap(source);
+          break;
+        case NAME:
+          name = readString(source);
+          break;
+        case EVENT:
+          event = readString(source);
+          break;
+        case PROPERTIES:
+          properties = readMap(source);
+          break;
+        default:
+          throw new IOException("Unknown field: " + field);
+      }
+    }
+
+    final Message.Builder builder;
+    switch (type) {
+      case TYPE_ALIAS:
+        builder = new AliasMessage.Builder().previousId(previousId);
+        break;
+      case TYPE_GROUP:
+        GroupMessage.Builder groupBuilder = new GroupMessage.Builder().groupId(groupId);
+        if (!isNullOrEmpty(traits)) {
+          groupBuilder.traits(traits);
+        }
+        builder = groupBuilder;
+        break;
+      case TYPE_IDENTIFY:
+        IdentifyMessage.Builder identifyBuilder = new IdentifyMessage.Builder();
+        if (!isNullOrEmpty(traits)) {
+          identifyBuilder.traits(traits);
+        }
+        builder = identifyBuilder;
+        break;
+      case TYPE_SCREEN:
+        ScreenMessage.Builder screenBuilder = new ScreenMessage.Builder().name(name);
+        if (!isNullOrEmpty(properties)) {
+          screenBuilder.properties(properties);
+        }
+        builder = screenBuilder;
+        break;
+      case TYPE_TRACK:
+        TrackMessage.Builder trackBuilder = new TrackMessage.Builder().event(event);
+        if (!isNullOrEmpty(properties)) {
+          trackBuilder.properties(properties);
+        }
+        builder = trackBuilder;
+        break;
+      default:
+        throw new IOException("Unknown message type: " + type);
+    }
+
+    if (messageId != null) {
+      builder.messageId(messageId);
+    }
+    if (timestamp != null) {
+      builder.timestamp(timestamp);
+    }
+    if (!isNullOrEmpty(context)) {
+      builder.context(context);
+    }
+    if (!isNullOrEmpty(integrations)) {
+      builder.integrations(integrations);
+    }
+    if (userId != null) {
+      builder.userId(userId);
+    }
+    if (anonymousId != null) {
+      builder.anonymousId(anonymousId);
+    }
+    return builder.build();
+  }
+
+  // Encoding
+
+  private void writeContext(Buffer sink, Map<String, Object> context) throws IOException {
+    if (dictionary == null || !(context instanceof LayeredMap)) {
+      writeMapField(sink, CONTEXT, context);
+      return;
+    }
+
+    // Find the shared map at the bottom, and the layers added on top of it.
+    Deque<Map<String, Object>> layers = new ArrayDeque<>();
+    LayeredMap<String, Object> shared = (LayeredMap<String, Object>) context;
+    while (shared.base() instanceof LayeredMap) {
+      layers.push(shared.layer());
+      shared = (LayeredMap<String, Object>) shared.base();
+    }
+    if (layers.isEmpty()) {
+      // Not layered on top of anything, so probably not shared with other messages.
+      writeMapField(sink, CONTEXT, context);
+      return;
+    }
+
+    sink.writeByte(SHARED_CONTEXT);
+    sink.writeLong(dictionary.put(shared));
+    writeVarLong(sink, layers.size());
+    for (Map<String, Object> layer : layers) {
+      writeMap(sink, layer);
+    }
+  }
+
+  private static void writeStringField(Buffer sink, int field, String value) {
+    if (value != null) {
+      sink.writeByte(field);
+      writeString(sink, value);
+    }
+  }
+
+  private static void writeMapField(Buffer sink, int field, Map<?, ?> value) {
+    if (value != null) {
+      sink.writeByte(field);
+      writeMap(sink, value);
+    }
+  }
+
+  private static void writeString(Buffer sink, String value) {
+    // Strings are usually short, so encode them first rather than measuring them.
+    Buffer utf8 = new Buffer().writeUtf8(value);
+    writeVarLong(sink, utf8.size());
+    sink.write(utf8, utf8.size());
+  }
+
+  static void writeMap(Buffer sink, Map<?, ?> map) {
+    writeVarLong(sink, map.size());
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      writeString(sink, String.valueOf(entry.getKey()));
+      writeValue(sink, entry.getValue());
+    }
+  }
+
+  /** Writes the value, following the same rules as {@link JsonUtils} does for JSON. */
+  private static void writeValue(Buffer sink, Object value) {
+    if (value == null) {
+      sink.writeByte(VALUE_NULL);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      sink.writeByte(VALUE_LONG);
+      writeVarLong(sink, ((Number) value).longValue());
+    } else if (value instanceof Double) {
+      double number = (Double) value;
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+      }
+      sink.writeByte(VALUE_DOUBLE);
+      sink.writeLong(Double.doubleToLongBits(number));
+    } else if (value instanceof Float) {
+      // Kept as a float, so it is written as JSON with the same digits as before it was stored.
+      float number = (Float) value;
+      if (Float.isNaN(number) || Float.isInfinite(number)) {
+        throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+      }
+      sink.writeByte(VALUE_FLOAT);
+      sink.writeInt(Float.floatToIntBits(number));
+    } else if (value instanceof Number) {
+      String number = value.toString();
+      if (number.equals("-Infinity") || number.equals("Infinity") || number.equals("NaN")) {
+        throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+      }
+      sink.writeByte(VALUE_NUMBER);
+      writeString(sink, number);
+    } else if (value instanceof Boolean) {
+      sink.writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      sink.writeByte(VALUE_LIST);
+      writeVarLong(sink, list.size());
+      for (Object element : list) {
+        writeValue(sink, element);
+      }
+    } else if (value instanceof Map) {
+      sink.writeByte(VALUE_MAP);
+      writeMap(sink, (Map<?, ?>) value);
+    } else {
+      sink.writeByte(VALUE_STRING);
+      writeString(sink, String.valueOf(value));
+    }
+  }
+
+  /** Writes a zig-zag encoded varint, so small negative numbers take a single byte too. */
+  private static void writeVarLong(Buffer sink, long value) {
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7FL) != 0) {
+      sink.writeByte((int) ((zigZag & 0x7F) | 0x80));
+      zigZag >>>= 7;
+    }
+    sink.writeByte((int) zigZag);
+  }
+
+  // Decoding
+
+  private LayeredMap<String, Object> readSharedContext(BufferedSource source) throws IOException {
+    long id = source.readLong();
+    LayeredMap<String, Object> context = dictionary == null ? null : dictionary.get(id);
+    if (context == null) {
+      // Missing shared context shouldn't stop the message from being uploaded, so send the rest.
+      context = LayeredMap.copyOf(Collections.<String, Object>emptyMap());
+    }
+    long layers = readVarLong(source);
+    for (long i = 0; i < layers; i++) {
+      context = context.plus(readMap(source));
+    }
+    return context;
+  }
+
+  private static String readString(BufferedSource source) throws IOException {
+    return source.readUtf8(readVarLong(source));
+  }
+
+  static Map<String, Object> readMap(BufferedSource source) throws IOException {
+    long size = readVarLong(source);
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (long i = 0; i < size; i++) {
+      map.put(readString(source), readValue(source));
+    }
+    return map;
+  }
+
+  private static Object readValue(BufferedSource source) throws IOException {
+    int type = source.readByte();
+    switch (type) {
+      case VALUE_NULL:
+        return null;
+      case VALUE_FALSE:
+        return false;
+      case VALUE_TRUE:
+        return true;
+      case VALUE_LONG:
+        return readVarLong(source);
+      case VALUE_DOUBLE:
+        return Double.longBitsToDouble(source.readLong());
+      case VALUE_FLOAT:
+        return Float.intBitsToFloat(source.readInt());
+      case VALUE_NUMBER:
+        String number = readString(source);
+        try {
+          return new BigDecimal(number);
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed number: " + number, e);
+        }
+      case VALUE_STRING:
+        return readString(source);
+      case VALUE_LIST:
+        long size = readVarLong(source);
+        List<Object> list = new ArrayList<>();
+        for (long i = 0; i < size; i++) {
+          list.add(readValue(source));
+        }
+        return list;
+      case VALUE_MAP:
+        return readMap(source);
+      default:
+        throw new IOException("Unknown value type: " + type);
+    }
+  }
+
+  private static long readVarLong(BufferedSource source) throws IOException {
+    long zigZag = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = source.readByte();
+      zigZag |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+    }
+    throw new EOFException("Malformed varint.");
+  }
+}
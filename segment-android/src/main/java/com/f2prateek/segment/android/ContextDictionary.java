@@ -0,0 +1,130 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.LayeredMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * Stores context that is shared by many queued messages, such as the static context added by
+ * {@link ContextInterceptor}, so that binary records can refer to it by ID instead of repeating it.
+ * Each context is stored once, in a file named after a hash of its contents.
+ */
+final class ContextDictionary {
+  // Shared contexts are reused by every message, so only a few need to be remembered.
+  private static final int WRITE_CACHE_SIZE = 4;
+
+  private final File directory;
+  // Contexts that have been stored, compared by identity to avoid hashing them for every message.
+  private final Map<?, ?>[] storedContexts = new Map<?, ?>[WRITE_CACHE_SIZE];
+  private final long[] storedIds = new long[WRITE_CACHE_SIZE];
+  private int nextStoredSlot;
+  private final Map<Long, LayeredMap<String, Object>> readContexts = new HashMap<>();
+
+  ContextDictionary(File directory) {
+    this.directory = directory;
+  }
+
+  /** Stores the context if it isn't already, and returns its ID. */
+  synchronized long put(LayeredMap<String, Object> context) throws IOException {
+    for (int i = 0; i < WRITE_CACHE_SIZE; i++) {
+      if (storedContexts[i] == context) {
+        return storedIds[i];
+      }
+    }
+
+    Buffer buffer = new Buffer();
+    BinaryMessageObjectQueueConverter.writeMap(buffer, context);
+    ByteString encoded = buffer.readByteString();
+    long id = new Buffer().write(encoded.sha1()).readLong();
+    File file = file(id);
+    if (!file.exists()) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+      // Written to a temporary file and synced first, so a record never refers to a partially
+      // written one, even if the device loses power.
+      File temporary = new File(directory, file.getName() + ".tmp");
+      FileOutputStream out = new FileOutputStream(temporary);
+      try {
+        BufferedSink sink = Okio.buffer(Okio.sink(out));
+        sink.write(encoded);
+        sink.flush();
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Unable to rename " + temporary + " to " + file);
+      }
+    }
+
+    storedContexts[nextStoredSlot] = context;
+    storedIds[nextStoredSlot] = id;
+    nextStoredSlot = (nextStoredSlot + 1) % WRITE_CACHE_SIZE;
+    readContexts.put(id, context);
+    return id;
+  }
+
+  /**
+   * Returns the context with the given ID, or null if it isn't stored or can't be read. An
+   * unreadable file is deleted, so that it is written again the next time the context is stored.
+   */
+  synchronized @Nullable LayeredMap<String, Object> get(long id) {
+    LayeredMap<String, Object> context = readContexts.get(id);
+    if (context != null) {
+      return context;
+    }
+    File file = file(id);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      BufferedSource source = Okio.buffer(Okio.source(file));
+      try {
+        context = LayeredMap.copyOf(BinaryMessageObjectQueueConverter.readMap(source));
+      } finally {
+        source.close();
+      }
+    } catch (IOException e) {
+      // Such as a file truncated by a crash before writes were synced.
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      for (int i = 0; i < WRITE_CACHE_SIZE; i++) {
+        if (storedContexts[i] != null && storedIds[i] == id) {
+          storedContexts[i] = null;
+        }
+      }
+      return null;
+    }
+    readContexts.put(id, context);
+    return context;
+  }
+
+  /** Deletes every stored context. Only call this when no queued records refer to them. */
+  synchronized void clear() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    for (int i = 0; i < WRITE_CACHE_SIZE; i++) {
+      storedContexts[i] = null;
+    }
+    readContexts.clear();
+  }
+
+  private File file(long id) {
+    return new File(directory, Long.toHexString(id));
+  }
+}
@@ -1,7 +1,10 @@
 package com.f2prateek.segment.android;
 
 import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
@@ -12,6 +15,7 @@ import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.WindowManager;
+import com.f2prateek.segment.model.LayeredMap;
 import com.f2prateek.segment.model.Message;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -19,13 +23,13 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
-import java.util.concurrent.Future;
 
 import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.Manifest.permission.READ_PHONE_STATE;
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static android.content.Context.TELEPHONY_SERVICE;
 import static android.content.pm.PackageManager.FEATURE_TELEPHONY;
+import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
 import static android.net.ConnectivityManager.TYPE_BLUETOOTH;
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.ConnectivityManager.TYPE_WIFI;
@@ -52,20 +56,42 @@ public class ContextInterceptor implements Interceptor {
     OS_CONTEXT = Collections.unmodifiableMap(os);
   }
 
-  private final Map<String, Object> staticContext;
+  private final LayeredMap<String, Object> staticContext;
   private final Context application;
-
+  /**
+   * The static context along with a snapshot of the network state. Refreshed whenever connectivity
+   * changes, so messages don't need to query the system services themselves.
+   */
+  private volatile LayeredMap<String, Object> deviceContext;
+
+  /**
+   * Returns an interceptor that adds the device context to every message. Only the application
+   * context is kept, so this may be called with an activity without leaking it.
+   */
   public static Interceptor with(Context context) {
     return new ContextInterceptor(context);
   }
 
   private ContextInterceptor(Context context) {
-    this.application = context;
+    // The connectivity receiver is never unregistered, so it must not hold on to an activity.
+    this.application = context.getApplicationContext();
     staticContext = buildStaticContext();
+    refreshDeviceContext();
+    application.registerReceiver(new BroadcastReceiver() {
+      @Override public void onReceive(Context context, Intent intent) {
+        refreshDeviceContext();
+      }
+    }, new IntentFilter(CONNECTIVITY_ACTION));
+  }
+
+  @Private void refreshDeviceContext() {
+    Map<String, Object> networkContext = new LinkedHashMap<>();
+    network(networkContext);
+    deviceContext = staticContext.plus(networkContext);
   }
 
   // Builds a context objects with fields that don't change in the duration of an app session.
-  private Map<String, Object> buildStaticContext() {
+  private LayeredMap<String, Object> buildStaticContext() {
     Map<String, Object> staticContext = new LinkedHashMap<>();
     staticContext.put("library", LIBRARY_CONTEXT);
     staticContext.put("os", OS_CONTEXT);
@@ -76,26 +102,20 @@ public class ContextInterceptor implements Interceptor {
     app(staticContext);
     device(staticContext);
     screen(staticContext);
-    return Collections.unmodifiableMap(staticContext);
+    return LayeredMap.copyOf(staticContext);
   }
 
-  @Nullable @Override public Future<Message> intercept(Chain chain) {
-    Message message = chain.message();
-    Message.Builder builder = message.toBuilder();
-
-    Map<String, Object> liveContext = new LinkedHashMap<>();
-    network(liveContext);
-
-    Map<String, Object> newContext = new LinkedHashMap<>();
-    newContext.putAll(staticContext);
-    newContext.putAll(liveContext);
-
-    Map<String, Object> context = message.context();
-    if (!isNullOrEmpty(context)) {
-      newContext.putAll(context);
+  @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+    // Read the context from the builder, so edits by earlier interceptors aren't built to read it.
+    Message.Builder<?, ?> builder = chain.edit();
+    Map<String, Object> context = builder.context();
+    // Share the device context rather than copying it into every message.
+    if (isNullOrEmpty(context)) {
+      builder.context(deviceContext);
+    } else {
+      builder.context(deviceContext.plus(context));
     }
-
-    return chain.proceed(builder.context(newContext).build());
+    return chain.proceed();
   }
 
   private void app(Map<String, Object> context) {
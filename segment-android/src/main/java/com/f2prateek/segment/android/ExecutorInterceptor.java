@@ -0,0 +1,73 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.Message;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static com.f2prateek.segment.android.ListenableFutureTask.DIRECT_EXECUTOR;
+import static com.f2prateek.segment.android.Utils.assertNotNull;
+
+/**
+ * Runs the rest of the interceptor chain on an {@link Executor}, so {@link Segment#enqueue} returns
+ * without waiting for later interceptors. Install this before interceptors that do expensive work,
+ * such as {@link ContextInterceptor}.
+ */
+public class ExecutorInterceptor implements Interceptor {
+  private final Executor executor;
+
+  public static Interceptor with(@NonNull Executor executor) {
+    return new ExecutorInterceptor(assertNotNull(executor, "executor"));
+  }
+
+  private ExecutorInterceptor(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Nullable @Override public ListenableFuture<Message> intercept(final Chain chain) {
+    final ListenableFutureTask<ListenableFuture<Message>> proceed =
+        new ListenableFutureTask<>(new Callable<ListenableFuture<Message>>() {
+          @Override public ListenableFuture<Message> call() throws Exception {
+            return chain.proceed();
+          }
+        });
+
+    // Completes with the result of the rest of the chain. This only runs once that is known, so it
+    // never blocks.
+    final ListenableFutureTask<Message> result =
+        new ListenableFutureTask<>(new Callable<Message>() {
+          @Override public Message call() throws Exception {
+            try {
+              ListenableFuture<Message> future = proceed.get();
+              return future == null ? null : future.get();
+            } catch (ExecutionException e) {
+              Throwable cause = e.getCause();
+              if (cause instanceof Exception) {
+                throw (Exception) cause;
+              }
+              throw (Error) cause;
+            }
+          }
+        });
+
+    proceed.addListener(new Runnable() {
+      @Override public void run() {
+        ListenableFuture<Message> future = null;
+        try {
+          future = proceed.get();
+        } catch (Exception ignored) {
+          // Reported by the result.
+        }
+        if (future == null) {
+          result.run();
+        } else {
+          future.addListener(result, DIRECT_EXECUTOR);
+        }
+      }
+    }, DIRECT_EXECUTOR);
+    executor.execute(proceed);
+    return result;
+  }
+}
@@ -0,0 +1,44 @@
+package com.f2prateek.segment.android;
+
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/** Compresses request bodies with gzip as they are written to the network. */
+final class GzipRequestInterceptor implements okhttp3.Interceptor {
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (request.body() == null || request.header("Content-Encoding") != null) {
+      return chain.proceed(request);
+    }
+
+    Request compressedRequest = request.newBuilder()
+        .header("Content-Encoding", "gzip")
+        .method(request.method(), gzip(request.body()))
+        .build();
+    return chain.proceed(compressedRequest);
+  }
+
+  private static RequestBody gzip(final RequestBody body) {
+    return new RequestBody() {
+      @Override public MediaType contentType() {
+        return body.contentType();
+      }
+
+      @Override public long contentLength() {
+        return -1; // The compressed length isn't known until the body is written.
+      }
+
+      @Override public void writeTo(BufferedSink sink) throws IOException {
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+      }
+    };
+  }
+}
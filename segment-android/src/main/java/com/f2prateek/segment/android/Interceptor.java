@@ -2,18 +2,36 @@ package com.f2prateek.segment.android;
 
 import android.support.annotation.Nullable;
 import com.f2prateek.segment.model.Message;
-import java.util.concurrent.Future;
 
 /** Intercept every message after it is built to process it further. */
 @Beta public interface Interceptor {
   /**
-   * Called for every message. This will be called on the same thread the request was made.
+   * Called for every message. This will be called on the same thread the request was made, unless
+   * an earlier interceptor proceeds on another thread, such as {@link ExecutorInterceptor}.
    */
-  @Nullable Future<Message> intercept(Chain chain);
+  @Nullable ListenableFuture<Message> intercept(Chain chain);
 
   @Beta interface Chain {
+    /**
+     * Returns the message being intercepted. Any changes made with {@link #edit()} are built into
+     * the returned message first, so prefer reading the message before editing it, or reading its
+     * context from {@link #edit()}. Throws {@link IllegalStateException} after {@link #proceed()},
+     * since later interceptors may still be editing the message.
+     */
     Message message();
 
-    Future<Message> proceed(Message message);
+    /**
+     * Returns a builder for the message being intercepted. The builder is shared by every
+     * interceptor that calls {@link #proceed()}, and is only built once all interceptors have
+     * run. Use this instead of {@link Message#toBuilder()} to avoid rebuilding the message in every
+     * interceptor. Throws {@link IllegalStateException} after {@link #proceed()}.
+     */
+    Message.Builder<?, ?> edit();
+
+    /** Passes the message, along with any changes made with {@link #edit()}, down the chain. */
+    ListenableFuture<Message> proceed();
+
+    /** Replaces the message and passes it down the chain. Discards changes made with edit(). */
+    ListenableFuture<Message> proceed(Message message);
   }
 }
@@ -16,11 +16,14 @@ package com.f2prateek.segment.android;
  * limitations under the License.
  */
 
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.TimeZone;
+import okio.Buffer;
+import okio.BufferedSink;
 
 /**
  * Jackson’s date formatter, pruned to Moshi's needs. Forked from this file:
@@ -41,14 +44,72 @@ final class Iso8601Utils {
   /** The GMT timezone, prefetched to avoid more lookups. */
   static final TimeZone TIMEZONE_Z = TimeZone.getTimeZone(GMT_ID);
 
+  private static final int FORMATTED_LENGTH = "yyyy-MM-ddThh:mm:ss.sssZ".length();
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+  /** 10000-01-01T00:00:00.000Z, the first instant whose year doesn't fit in four digits. */
+  private static final long MAX_FAST_FORMAT_MILLIS = 253402300800000L;
+
   /** Returns {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ */
   public static String format(Date date) {
+    Buffer buffer = new Buffer();
+    try {
+      format(date, buffer);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return buffer.readUtf8();
+  }
+
+  /**
+   * Writes {@code date} formatted as yyyy-MM-ddThh:mm:ss.sssZ to {@code sink}. This writes the
+   * ASCII bytes directly, rather than encoding a string.
+   */
+  public static void format(Date date, BufferedSink sink) throws IOException {
+    long millis = date.getTime();
+    if (millis < 0 || millis >= MAX_FAST_FORMAT_MILLIS) {
+      // Dates before the epoch may fall before the Gregorian cutover, let the calendar handle them.
+      sink.writeUtf8(formatWithCalendar(date));
+      return;
+    }
+
+    long days = millis / MILLIS_PER_DAY;
+    int millisOfDay = (int) (millis % MILLIS_PER_DAY);
+
+    // Convert days since the epoch to a civil date, see
+    // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    long z = days + 719468;
+    long era = z / 146097;
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153; // March is 0.
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+    byte[] buffer = new byte[FORMATTED_LENGTH];
+    writeInt(buffer, 0, year, 4);
+    buffer[4] = '-';
+    writeInt(buffer, 5, month, 2);
+    buffer[7] = '-';
+    writeInt(buffer, 8, day, 2);
+    buffer[10] = 'T';
+    writeInt(buffer, 11, millisOfDay / 3600000, 2);
+    buffer[13] = ':';
+    writeInt(buffer, 14, millisOfDay / 60000 % 60, 2);
+    buffer[16] = ':';
+    writeInt(buffer, 17, millisOfDay / 1000 % 60, 2);
+    buffer[19] = '.';
+    writeInt(buffer, 20, millisOfDay % 1000, 3);
+    buffer[23] = 'Z';
+    sink.write(buffer);
+  }
+
+  private static String formatWithCalendar(Date date) {
     Calendar calendar = new GregorianCalendar(TIMEZONE_Z, Locale.US);
     calendar.setTime(date);
 
-    // estimate capacity of buffer as close as we can (yeah, that's pedantic ;)
-    int capacity = "yyyy-MM-ddThh:mm:ss.sssZ".length();
-    StringBuilder formatted = new StringBuilder(capacity);
+    StringBuilder formatted = new StringBuilder(FORMATTED_LENGTH);
     padInt(formatted, calendar.get(Calendar.YEAR), "yyyy".length());
     formatted.append('-');
     padInt(formatted, calendar.get(Calendar.MONTH) + 1, "MM".length());
@@ -74,6 +135,11 @@ final class Iso8601Utils {
    * @return the parsed date
    */
   public static Date parse(String date) {
+    long millis = parseCanonical(date);
+    if (millis >= 0) {
+      return new Date(millis);
+    }
+
     try {
       int offset = 0;
 
@@ -197,6 +263,97 @@ final class Iso8601Utils {
     }
   }
 
+  /**
+   * Parse a date in the exact yyyy-MM-ddThh:mm:ss.sssZ form written by {@link #format}, without
+   * using a calendar. Only dates on or after the epoch are handled.
+   *
+   * @param date ISO string to parse
+   * @return the milliseconds since the epoch, or -1 if the date isn't in the expected form
+   */
+  private static long parseCanonical(String date) {
+    if (date.length() != FORMATTED_LENGTH
+        || date.charAt(4) != '-'
+        || date.charAt(7) != '-'
+        || date.charAt(10) != 'T'
+        || date.charAt(13) != ':'
+        || date.charAt(16) != ':'
+        || date.charAt(19) != '.'
+        || date.charAt(23) != 'Z') {
+      return -1;
+    }
+
+    int year = readInt(date, 0, 4);
+    int month = readInt(date, 5, 2);
+    int day = readInt(date, 8, 2);
+    int hour = readInt(date, 11, 2);
+    int minutes = readInt(date, 14, 2);
+    int seconds = readInt(date, 17, 2);
+    int milliseconds = readInt(date, 20, 3);
+    if (year < 1970
+        || month < 1
+        || month > 12
+        || day < 1
+        || day > daysInMonth(year, month)
+        || hour < 0
+        || hour > 23
+        || minutes < 0
+        || minutes > 59
+        || seconds < 0
+        || seconds > 59
+        || milliseconds < 0) {
+      // Leave leap seconds and invalid dates to the general parser.
+      return -1;
+    }
+
+    // Convert the civil date to days since the epoch, see
+    // http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468;
+
+    return days * MILLIS_PER_DAY
+        + ((hour * 60 + minutes) * 60 + seconds) * 1000L
+        + milliseconds;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leapYear = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        return leapYear ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * Read a non-negative number of a fixed length from a string.
+   *
+   * @param value the string to read from
+   * @param offset index of the first digit in the string
+   * @param length the number of digits to read
+   * @return the number, or -1 if any of the characters is not a digit
+   */
+  private static int readInt(String value, int offset, int length) {
+    int result = 0;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
   /**
    * Check if the expected character exist at the given offset in the value.
    *
@@ -260,6 +417,21 @@ final class Iso8601Utils {
     buffer.append(strValue);
   }
 
+  /**
+   * Write a non-negative number into a buffer, zero padded to a specified length.
+   *
+   * @param buffer buffer to write to
+   * @param offset index of the first digit in the buffer
+   * @param value the integer value to write
+   * @param length the number of digits to write
+   */
+  private static void writeInt(byte[] buffer, int offset, int value, int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
   /**
    * Returns the index of the first character in the string that is not a digit, starting at
    * offset.
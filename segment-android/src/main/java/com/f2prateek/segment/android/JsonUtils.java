@@ -1,21 +1,25 @@
 package com.f2prateek.segment.android;
 
-import android.util.JsonReader;
-import android.util.JsonToken;
-import android.util.JsonWriter;
+import android.support.annotation.Nullable;
 import com.f2prateek.segment.model.AliasMessage;
-import com.f2prateek.segment.model.Batch;
 import com.f2prateek.segment.model.GroupMessage;
 import com.f2prateek.segment.model.IdentifyMessage;
+import com.f2prateek.segment.model.LazyMap;
 import com.f2prateek.segment.model.Message;
 import com.f2prateek.segment.model.ScreenMessage;
 import com.f2prateek.segment.model.TrackMessage;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Options;
 
 import static com.f2prateek.segment.android.Utils.isNullOrEmpty;
 
@@ -23,32 +27,109 @@ final class JsonUtils {
   // Single message is limited to 15kb.
   static final int MAX_MESSAGE_SIZE = 15 << 10;
   // Batch message is limited to 500kb.
-  private static final int MAX_BATCH_SIZE = 500 << 10;
-  // Try to guarantee delivery by ensuring we don't try to upload more events than we're allowed.
-  static final int MAX_BATCH_COUNT = MAX_BATCH_SIZE / MAX_MESSAGE_SIZE;
+  static final int MAX_BATCH_SIZE = 500 << 10;
+  // Bytes taken by a batch without any messages: {"batch":[],"sentAt":"yyyy-MM-ddThh:mm:ss.sssZ"}.
+  static final int BATCH_ENVELOPE_SIZE = 48;
+
+  // Encoded field names, with the separators around them, so they can be copied as-is.
+  private static final ByteString[] TYPE_PREFIXES = new ByteString[Message.Type.values().length];
+  private static final ByteString MESSAGE_ID = ByteString.encodeUtf8(",\"messageId\":");
+  private static final ByteString TIMESTAMP = ByteString.encodeUtf8(",\"timestamp\":");
+  private static final ByteString CONTEXT = ByteString.encodeUtf8(",\"context\":");
+  private static final ByteString INTEGRATIONS = ByteString.encodeUtf8(",\"integrations\":");
+  private static final ByteString USER_ID = ByteString.encodeUtf8(",\"userId\":");
+  private static final ByteString ANONYMOUS_ID = ByteString.encodeUtf8(",\"anonymousId\":");
+  private static final ByteString PREVIOUS_ID = ByteString.encodeUtf8(",\"previousId\":");
+  private static final ByteString GROUP_ID = ByteString.encodeUtf8(",\"groupId\":");
+  private static final ByteString TRAITS = ByteString.encodeUtf8(",\"traits\":");
+  private static final ByteString NAME = ByteString.encodeUtf8(",\"name\":");
+  private static final ByteString EVENT = ByteString.encodeUtf8(",\"event\":");
+  private static final ByteString PROPERTIES = ByteString.encodeUtf8(",\"properties\":");
+
+  static {
+    for (Message.Type type : Message.Type.values()) {
+      TYPE_PREFIXES[type.ordinal()] = ByteString.encodeUtf8("{\"type\":\"" + type + "\"");
+    }
+  }
+
+  // Field names in the order of the constants below, matched without decoding them.
+  private static final Options FIELD_NAMES = Options.of( //
+      ByteString.encodeUtf8("\"type\""), //
+      ByteString.encodeUtf8("\"messageId\""), //
+      ByteString.encodeUtf8("\"timestamp\""), //
+      ByteString.encodeUtf8("\"context\""), //
+      ByteString.encodeUtf8("\"integrations\""), //
+      ByteString.encodeUtf8("\"userId\""), //
+      ByteString.encodeUtf8("\"anonymousId\""), //
+      ByteString.encodeUtf8("\"previousId\""), //
+      ByteString.encodeUtf8("\"groupId\""), //
+      ByteString.encodeUtf8("\"traits\""), //
+      ByteString.encodeUtf8("\"name\""), //
+      ByteString.encodeUtf8("\"event\""), //
+      ByteString.encodeUtf8("\"properties\""));
+  private static final int FIELD_TYPE = 0;
+  private static final int FIELD_MESSAGE_ID = 1;
+  private static final int FIELD_TIMESTAMP = 2;
+  private static final int FIELD_CONTEXT = 3;
+  private static final int FIELD_INTEGRATIONS = 4;
+  private static final int FIELD_USER_ID = 5;
+  private static final int FIELD_ANONYMOUS_ID = 6;
+  private static final int FIELD_PREVIOUS_ID = 7;
+  private static final int FIELD_GROUP_ID = 8;
+  private static final int FIELD_TRAITS = 9;
+  private static final int FIELD_NAME = 10;
+  private static final int FIELD_EVENT = 11;
+  private static final int FIELD_PROPERTIES = 12;
+
+  private static final ByteString NULL = ByteString.encodeUtf8("null");
+  private static final ByteString TRUE = ByteString.encodeUtf8("true");
+  private static final ByteString FALSE = ByteString.encodeUtf8("false");
+  private static final ByteString STRING_TERMINALS = ByteString.encodeUtf8("\"\\");
+
+  // Escape sequences for ASCII characters, or null if the character is written as-is. These
+  // match android.util.JsonWriter, so both produce the same bytes.
+  private static final String[] REPLACEMENT_CHARS = new String[128];
+
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+    }
+    REPLACEMENT_CHARS['"'] = "\\\"";
+    REPLACEMENT_CHARS['\\'] = "\\\\";
+    REPLACEMENT_CHARS['\t'] = "\\t";
+    REPLACEMENT_CHARS['\b'] = "\\b";
+    REPLACEMENT_CHARS['\n'] = "\\n";
+    REPLACEMENT_CHARS['\r'] = "\\r";
+    REPLACEMENT_CHARS['\f'] = "\\f";
+  }
 
   private JsonUtils() {
     throw new AssertionError("No instances");
   }
 
-  static void toJson(JsonWriter writer, Batch batch) throws IOException {
-    writer.beginObject();
-
-    writer.name("batch").beginArray();
-    for (Message message : batch.batch()) {
-      toJson(writer, message);
-    }
-    writer.endArray();
-
-    writer.name("sentAt").value(Iso8601Utils.format(batch.sentAt()));
+  /** Returns the given message encoded as JSON. */
+  static byte[] toByteArray(Message message) throws IOException {
+    Buffer buffer = new Buffer();
+    toJson(buffer, message);
+    return buffer.readByteArray();
+  }
 
-    writer.endObject();
+  /** Returns the number of bytes the given message takes when encoded as JSON. */
+  static long sizeOf(Message message) throws IOException {
+    Buffer buffer = new Buffer();
+    toJson(buffer, message);
+    long size = buffer.size();
+    buffer.clear();
+    return size;
   }
 
-  @SuppressWarnings("ConstantConditions") static Message fromJson(JsonReader reader)
+  /**
+   * Reads a message encoded as JSON. Its context, traits and properties are only decoded when
+   * they are first read, and are written back out without decoding them.
+   */
+  @SuppressWarnings("ConstantConditions") static Message fromJson(BufferedSource source)
       throws IOException {
-    reader.beginObject();
-
+    expect(source, '{');
     // Common fields.
     Message.Type type = null;
     String messageId = null;
@@ -79,71 +160,64 @@ final class JsonUtils {
     // Screen and Track fields
     Map<String, Object> properties = null;
 
-    while (reader.hasNext()) {
-      String fieldName = reader.nextName();
-      if (reader.peek() == JsonToken.NULL) {
-        reader.skipValue();
-        continue;
-      }
-      switch (fieldName) {
-        case "type": {
-          type = Enum.valueOf(Message.Type.class, reader.nextString());
-          break;
+    if (!consume(source, '}')) {
+      do {
+        skipWhitespace(source);
+        int field = source.select(FIELD_NAMES);
+        if (field == -1) {
+          readString(source); // An unknown field, whose value is skipped below.
         }
-        case "messageId": {
-          messageId = reader.nextString();
-          break;
+        expect(source, ':');
+        if (peek(source) == 'n') {
+          readLiteral(source, NULL);
+          continue;
         }
-        case "timestamp": {
-          timestamp = Iso8601Utils.parse(reader.nextString());
-          break;
+        switch (field) {
+          case FIELD_TYPE:
+            type = Enum.valueOf(Message.Type.class, readString(source));
+            break;
+          case FIELD_MESSAGE_ID:
+            messageId = readString(source);
+            break;
+          case FIELD_TIMESTAMP:
+            timestamp = Iso8601Utils.parse(readString(source));
+            break;
+          case FIELD_CONTEXT:
+            context = readLazyMap(source);
+            break;
+          case FIELD_INTEGRATIONS:
+            integrations = readMap(source);
+            break;
+          case FIELD_USER_ID:
+            userId = readString(source);
+            break;
+          case FIELD_ANONYMOUS_ID:
+            anonymousId = readString(source);
+            break;
+          case FIELD_PREVIOUS_ID:
+            previousId = readString(source);
+            break;
+          case FIELD_GROUP_ID:
+            groupId = readString(source);
+            break;
+          case FIELD_TRAITS:
+            traits = readLazyMap(source);
+            break;
+          case FIELD_NAME:
+            name = readString(source);
+            break;
+          case FIELD_EVENT:
+            event = readString(source);
+            break;
+          case FIELD_PROPERTIES:
+            properties = readLazyMap(source);
+            break;
+          default:
+            readValue(source);
         }
-        case "context": {
-          context = readerToMap(reader);
-          break;
-        }
-        case "integrations": {
-          integrations = readerToMap(reader);
-          break;
-        }
-        case "userId": {
-          userId = reader.nextString();
-          break;
-        }
-        case "anonymousId": {
-          anonymousId = reader.nextString();
-          break;
-        }
-        case "previousId": {
-          previousId = reader.nextString();
-          break;
-        }
-        case "groupId": {
-          groupId = reader.nextString();
-          break;
-        }
-        case "traits": {
-          traits = readerToMap(reader);
-          break;
-        }
-        case "name": {
-          name = reader.nextString();
-          break;
-        }
-        case "event": {
-          event = reader.nextString();
-          break;
-        }
-        case "properties": {
-          properties = readerToMap(reader);
-          break;
-        }
-        default: {
-          reader.skipValue();
-        }
-      }
+      } while (consume(source, ','));
+      expect(source, '}');
     }
-    reader.endObject();
 
     final Message.Builder builder;
 
@@ -155,7 +229,7 @@ final class JsonUtils {
         GroupMessage.Builder groupBuilder = new GroupMessage.Builder().groupId(groupId);
         builder = groupBuilder;
 
-        if (!isNullOrEmpty(traits)) {
+        if (traits != null) {
           groupBuilder.traits(traits);
         }
         break;
@@ -163,7 +237,7 @@ final class JsonUtils {
         IdentifyMessage.Builder identifyBuilder = new IdentifyMessage.Builder();
         builder = identifyBuilder;
 
-        if (!isNullOrEmpty(traits)) {
+        if (traits != null) {
           identifyBuilder.traits(traits);
         }
         break;
@@ -171,7 +245,7 @@ final class JsonUtils {
         ScreenMessage.Builder screenBuilder = new ScreenMessage.Builder().name(name);
         builder = screenBuilder;
 
-        if (!isNullOrEmpty(properties)) {
+        if (properties != null) {
           screenBuilder.properties(properties);
         }
         break;
@@ -179,7 +253,7 @@ final class JsonUtils {
         TrackMessage.Builder trackBuilder = new TrackMessage.Builder().event(event);
         builder = trackBuilder;
 
-        if (!isNullOrEmpty(properties)) {
+        if (properties != null) {
           trackBuilder.properties(properties);
         }
         break;
@@ -195,7 +269,7 @@ final class JsonUtils {
       builder.timestamp(timestamp);
     }
 
-    if (!isNullOrEmpty(integrations)) {
+    if (context != null) {
       builder.context(context);
     }
 
@@ -214,87 +288,103 @@ final class JsonUtils {
     return builder.build();
   }
 
-  static void toJson(JsonWriter writer, Message message) throws IOException {
-    writer.beginObject();
-
+  /** Writes the given message as JSON, in the same form as {@link android.util.JsonWriter}. */
+  static void toJson(BufferedSink sink, Message message) throws IOException {
     // Common fields.
     Message.Type type = message.type();
-    writer.name("type").value(type.toString());
+    sink.write(TYPE_PREFIXES[type.ordinal()]);
 
     String messageId = message.messageId();
-    if (messageId != null) writer.name("messageId").value(messageId);
+    if (messageId != null) {
+      sink.write(MESSAGE_ID);
+      writeString(sink, messageId);
+    }
 
     Date timestamp = message.timestamp();
-    if (timestamp != null) writer.name("timestamp").value(Iso8601Utils.format(timestamp));
+    if (timestamp != null) {
+      sink.write(TIMESTAMP);
+      sink.writeByte('"');
+      Iso8601Utils.format(timestamp, sink);
+      sink.writeByte('"');
+    }
 
     Map<String, Object> context = message.context();
     if (context != null) {
-      writer.name("context");
-      mapToWriter(context, writer);
+      sink.write(CONTEXT);
+      writeMap(sink, context);
     }
 
     Map<String, Object> integrations = message.integrations();
     if (integrations != null) {
-      writer.name("integrations");
-      mapToWriter(integrations, writer);
+      sink.write(INTEGRATIONS);
+      writeMap(sink, integrations);
     }
 
     String userId = message.userId();
-    if (userId != null) writer.name("userId").value(userId);
+    if (userId != null) {
+      sink.write(USER_ID);
+      writeString(sink, userId);
+    }
 
     String anonymousId = message.anonymousId();
-    if (anonymousId != null) writer.name("anonymousId").value(anonymousId);
+    if (anonymousId != null) {
+      sink.write(ANONYMOUS_ID);
+      writeString(sink, anonymousId);
+    }
 
-    switch (message.type()) {
+    switch (type) {
       case alias:
-        String previousId = ((AliasMessage) message).previousId();
-        writer.name("previousId").value(previousId);
+        sink.write(PREVIOUS_ID);
+        writeString(sink, ((AliasMessage) message).previousId());
         break;
       case group:
         GroupMessage groupMessage = ((GroupMessage) message);
 
-        writer.name("groupId").value(groupMessage.groupId());
+        sink.write(GROUP_ID);
+        writeString(sink, groupMessage.groupId());
 
         Map<String, Object> groupTraits = groupMessage.traits();
         if (groupTraits != null) {
-          writer.name("traits");
-          mapToWriter(groupTraits, writer);
+          sink.write(TRAITS);
+          writeMap(sink, groupTraits);
         }
         break;
       case identify:
         Map<String, Object> identifyTraits = ((IdentifyMessage) message).traits();
         if (identifyTraits != null) {
-          writer.name("traits");
-          mapToWriter(identifyTraits, writer);
+          sink.write(TRAITS);
+          writeMap(sink, identifyTraits);
         }
         break;
       case screen:
         ScreenMessage screenMessage = ((ScreenMessage) message);
 
-        writer.name("name").value(screenMessage.name());
+        sink.write(NAME);
+        writeString(sink, screenMessage.name());
 
         Map<String, Object> screenProperties = screenMessage.properties();
         if (screenProperties != null) {
-          writer.name("properties");
-          mapToWriter(screenProperties, writer);
+          sink.write(PROPERTIES);
+          writeMap(sink, screenProperties);
         }
         break;
       case track:
         TrackMessage trackMessage = ((TrackMessage) message);
 
-        writer.name("event").value(trackMessage.event());
+        sink.write(EVENT);
+        writeString(sink, trackMessage.event());
 
         Map<String, Object> trackProperties = trackMessage.properties();
         if (trackProperties != null) {
-          writer.name("properties");
-          mapToWriter(trackProperties, writer);
+          sink.write(PROPERTIES);
+          writeMap(sink, trackProperties);
         }
         break;
       default:
-        throw new AssertionError("unknown message type: " + message.type());
+        throw new AssertionError("unknown message type: " + type);
     }
 
-    writer.endObject();
+    sink.writeByte('}');
   }
 
   static final class MessageTooLargeException extends IOException {
@@ -317,90 +407,360 @@ final class JsonUtils {
 
   // Adapted from Cartographer: https://github.com/segmentio/cartographer.
 
-  /** Reads the {@link JsonReader} into a {@link Map}. */
-  private static Map<String, Object> readerToMap(JsonReader reader) throws IOException {
+  /** Reads a JSON object into a {@link Map}. */
+  private static Map<String, Object> readMap(BufferedSource source) throws IOException {
     Map<String, Object> map = new LinkedHashMap<>();
-    reader.beginObject();
-    while (reader.hasNext()) {
-      map.put(reader.nextName(), readValue(reader));
+    expect(source, '{');
+    if (!consume(source, '}')) {
+      do {
+        skipWhitespace(source);
+        String name = readString(source);
+        expect(source, ':');
+        map.put(name, readValue(source));
+      } while (consume(source, ','));
+      expect(source, '}');
     }
-    reader.endObject();
     return map;
   }
 
-  /** Reads the {@link JsonReader} into a {@link List}. */
-  private static List<Object> readerToList(JsonReader reader) throws IOException {
+  /**
+   * Reads a JSON object into a {@link LazyMap} that decodes it when it is first read, or returns
+   * null if the object is empty.
+   */
+  private static @Nullable Map<String, Object> readLazyMap(BufferedSource source)
+      throws IOException {
+    byte b = peek(source);
+    if (b != '{') {
+      throw new IOException("Expected '{' but was '" + (char) b + "'");
+    }
+    ByteString json = source.readByteString(objectLength(source));
+    if (json.size() == 2) {
+      return null;
+    }
+    return LazyMap.of(new JsonMapLoader(json));
+  }
+
+  /**
+   * Returns the number of bytes taken by the JSON object at the start of {@code source}, without
+   * consuming them. Only brackets and strings are scanned; everything else is checked when the
+   * object is decoded.
+   */
+  private static long objectLength(BufferedSource source) throws IOException {
+    Buffer buffer = source.buffer();
+    long index = 0;
+    int depth = 0;
+    do {
+      source.require(index + 1);
+      byte b = buffer.getByte(index++);
+      if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+      } else if (b == '"') {
+        // Skip to the closing quote, stepping over escaped characters.
+        while (true) {
+          index = source.indexOfElement(STRING_TERMINALS, index);
+          if (index == -1) {
+            throw new EOFException("Unterminated string");
+          }
+          if (buffer.getByte(index) == '"') {
+            index++;
+            break;
+          }
+          index += 2;
+        }
+      }
+    } while (depth > 0);
+    return index;
+  }
+
+  /** Decodes a JSON object from the bytes it was read from. */
+  static final class JsonMapLoader implements LazyMap.Loader<String, Object> {
+    final ByteString json;
+
+    JsonMapLoader(ByteString json) {
+      this.json = json;
+    }
+
+    @Override public Map<String, Object> load() {
+      try {
+        return readMap(new Buffer().write(json));
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to decode " + json.utf8(), e);
+      }
+    }
+  }
+
+  /** Reads a JSON array into a {@link List}. */
+  private static List<Object> readList(BufferedSource source) throws IOException {
     // todo: try to infer the type of the List?
     List<Object> list = new ArrayList<>();
-    reader.beginArray();
-    while (reader.hasNext()) {
-      list.add(readValue(reader));
+    expect(source, '[');
+    if (!consume(source, ']')) {
+      do {
+        list.add(readValue(source));
+      } while (consume(source, ','));
+      expect(source, ']');
     }
-    reader.endArray();
     return list;
   }
 
-  /** Reads the next value in the {@link JsonReader}. */
-  private static Object readValue(JsonReader reader) throws IOException {
-    JsonToken token = reader.peek();
-    switch (token) {
-      case BEGIN_OBJECT:
-        return readerToMap(reader);
-      case BEGIN_ARRAY:
-        return readerToList(reader);
-      case BOOLEAN:
-        return reader.nextBoolean();
-      case NULL:
-        reader.nextNull(); // consume the null token
+  /** Reads the next JSON value. Numbers are always read as doubles. */
+  private static Object readValue(BufferedSource source) throws IOException {
+    byte b = peek(source);
+    switch (b) {
+      case '{':
+        return readMap(source);
+      case '[':
+        return readList(source);
+      case '"':
+        return readString(source);
+      case 't':
+        readLiteral(source, TRUE);
+        return true;
+      case 'f':
+        readLiteral(source, FALSE);
+        return false;
+      case 'n':
+        readLiteral(source, NULL);
         return null;
-      case NUMBER:
-        return reader.nextDouble();
-      case STRING:
-        return reader.nextString();
       default:
-        throw new IllegalStateException("Invalid token " + token);
+        if (b == '-' || (b >= '0' && b <= '9')) {
+          return readNumber(source);
+        }
+        throw new IOException("Unexpected character '" + (char) b + "'");
+    }
+  }
+
+  /** Reads a JSON string, decoding runs without escape sequences directly from UTF-8. */
+  private static String readString(BufferedSource source) throws IOException {
+    expect(source, '"');
+    Buffer buffer = source.buffer();
+    StringBuilder builder = null;
+    while (true) {
+      long index = source.indexOfElement(STRING_TERMINALS);
+      if (index == -1) {
+        throw new EOFException("Unterminated string");
+      }
+      if (buffer.getByte(index) == '"') {
+        String value = buffer.readUtf8(index);
+        buffer.skip(1);
+        if (builder == null) {
+          return value;
+        }
+        return builder.append(value).toString();
+      }
+      if (builder == null) {
+        builder = new StringBuilder();
+      }
+      builder.append(buffer.readUtf8(index));
+      buffer.skip(1);
+      builder.append(readEscapeCharacter(source));
+    }
+  }
+
+  /** Reads the character escaped by the backslash that was just read. */
+  private static char readEscapeCharacter(BufferedSource source) throws IOException {
+    source.require(1);
+    byte escaped = source.readByte();
+    switch (escaped) {
+      case 'u':
+        source.require(4);
+        char result = 0;
+        for (int i = 0; i < 4; i++) {
+          byte b = source.readByte();
+          result <<= 4;
+          if (b >= '0' && b <= '9') {
+            result += (b - '0');
+          } else if (b >= 'a' && b <= 'f') {
+            result += (b - 'a' + 10);
+          } else if (b >= 'A' && b <= 'F') {
+            result += (b - 'A' + 10);
+          } else {
+            throw new IOException("Invalid escape sequence");
+          }
+        }
+        return result;
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case '"':
+      case '\\':
+      case '/':
+        return (char) escaped;
+      default:
+        throw new IOException("Invalid escape sequence: \\" + (char) escaped);
+    }
+  }
+
+  private static double readNumber(BufferedSource source) throws IOException {
+    Buffer buffer = source.buffer();
+    long length = 0;
+    while (source.request(length + 1)) {
+      byte b = buffer.getByte(length);
+      if ((b < '0' || b > '9') && b != '-' && b != '+' && b != '.' && b != 'e' && b != 'E') {
+        break;
+      }
+      length++;
+    }
+    String number = buffer.readUtf8(length);
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed number: " + number);
+    }
+  }
+
+  private static void readLiteral(BufferedSource source, ByteString literal) throws IOException {
+    if (!source.rangeEquals(0, literal)) {
+      throw new IOException("Expected " + literal.utf8());
+    }
+    source.skip(literal.size());
+  }
+
+  /** Skips whitespace and returns the next byte without consuming it. */
+  private static byte peek(BufferedSource source) throws IOException {
+    skipWhitespace(source);
+    source.require(1);
+    return source.buffer().getByte(0);
+  }
+
+  /** Consumes the next byte if it is {@code expected}, returning true if it was. */
+  private static boolean consume(BufferedSource source, char expected) throws IOException {
+    if (peek(source) != expected) {
+      return false;
+    }
+    source.skip(1);
+    return true;
+  }
+
+  private static void expect(BufferedSource source, char expected) throws IOException {
+    byte b = peek(source);
+    if (b != expected) {
+      throw new IOException("Expected '" + expected + "' but was '" + (char) b + "'");
+    }
+    source.skip(1);
+  }
+
+  private static void skipWhitespace(BufferedSource source) throws IOException {
+    Buffer buffer = source.buffer();
+    while (source.request(1)) {
+      byte b = buffer.getByte(0);
+      if (b != ' ' && b != '\n' && b != '\t' && b != '\r') {
+        return;
+      }
+      buffer.skip(1);
     }
   }
 
   // Encoding
 
-  /** Encode the given {@link Map} into the {@link JsonWriter}. */
-  private static void mapToWriter(Map<?, ?> map, JsonWriter writer) throws IOException {
-    writer.beginObject();
+  /** Encode the given {@link Map} as a JSON object. */
+  private static void writeMap(BufferedSink sink, Map<?, ?> map) throws IOException {
+    if (map instanceof LazyMap) {
+      LazyMap.Loader<?, ?> loader = ((LazyMap<?, ?>) map).loader();
+      if (loader instanceof JsonMapLoader) {
+        // Already JSON; copy it rather than decoding and encoding it again.
+        sink.write(((JsonMapLoader) loader).json);
+        return;
+      }
+    }
+    sink.writeByte('{');
+    boolean first = true;
     for (Map.Entry<?, ?> entry : map.entrySet()) {
-      writer.name(String.valueOf(entry.getKey()));
-      writeValue(entry.getValue(), writer);
+      if (!first) {
+        sink.writeByte(',');
+      }
+      first = false;
+      writeString(sink, String.valueOf(entry.getKey()));
+      sink.writeByte(':');
+      writeValue(sink, entry.getValue());
     }
-    writer.endObject();
+    sink.writeByte('}');
   }
 
-  /** Print the json representation of a List to the given writer. */
-  private static void listToWriter(List<?> list, JsonWriter writer) throws IOException {
-    writer.beginArray();
+  /** Encode the given {@link List} as a JSON array. */
+  private static void writeList(BufferedSink sink, List<?> list) throws IOException {
+    sink.writeByte('[');
+    boolean first = true;
     for (Object value : list) {
-      writeValue(value, writer);
+      if (!first) {
+        sink.writeByte(',');
+      }
+      first = false;
+      writeValue(sink, value);
     }
-    writer.endArray();
+    sink.writeByte(']');
   }
 
   /**
-   * Writes the given {@link Object} to the {@link JsonWriter}.
+   * Writes the given {@link Object} as JSON.
    *
-   * @throws IOException
+   * @throws IllegalArgumentException if the value is a non-finite number.
    */
-  private static void writeValue(Object value, JsonWriter writer) throws IOException {
+  private static void writeValue(BufferedSink sink, Object value) throws IOException {
     if (value == null) {
-      writer.nullValue();
+      sink.write(NULL);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      sink.writeDecimalLong(((Number) value).longValue());
     } else if (value instanceof Number) {
-      writer.value((Number) value);
+      String string = value.toString();
+      if (string.equals("-Infinity") || string.equals("Infinity") || string.equals("NaN")) {
+        throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+      }
+      sink.writeUtf8(string);
     } else if (value instanceof Boolean) {
-      writer.value((Boolean) value);
+      sink.write((Boolean) value ? TRUE : FALSE);
     } else if (value instanceof List) {
-      listToWriter((List) value, writer);
+      writeList(sink, (List) value);
     } else if (value instanceof Map) {
-      mapToWriter((Map) value, writer);
+      writeMap(sink, (Map) value);
     } else {
-      writer.value(String.valueOf(value));
+      writeString(sink, String.valueOf(value));
+    }
+  }
+
+  /** Writes a quoted JSON string, copying runs that need no escaping in one call. */
+  private static void writeString(BufferedSink sink, String value) throws IOException {
+    if (value == null) {
+      sink.write(NULL);
+      return;
+    }
+    sink.writeByte('"');
+    int last = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement;
+      if (c < 128) {
+        replacement = REPLACEMENT_CHARS[c];
+        if (replacement == null) {
+          continue;
+        }
+      } else if (c == '\u2028') {
+        replacement = "\\u2028";
+      } else if (c == '\u2029') {
+        replacement = "\\u2029";
+      } else {
+        continue;
+      }
+      if (last < i) {
+        sink.writeUtf8(value, last, i);
+      }
+      sink.writeUtf8(replacement);
+      last = i + 1;
+    }
+    if (last < length) {
+      sink.writeUtf8(value, last, length);
     }
+    sink.writeByte('"');
   }
 }
@@ -0,0 +1,14 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.NonNull;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/** A {@link Future} that lets you react to its completion without blocking a thread. */
+@Beta public interface ListenableFuture<V> extends Future<V> {
+  /**
+   * Runs the listener on the given executor once this future completes, or right away if it has
+   * already completed. Listeners may run in any order.
+   */
+  void addListener(@NonNull Runnable listener, @NonNull Executor executor);
+}
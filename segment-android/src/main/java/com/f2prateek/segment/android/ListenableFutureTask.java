@@ -0,0 +1,65 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.f2prateek.segment.android.Utils.assertNotNull;
+
+/** A {@link FutureTask} that runs its listeners once the task completes. */
+class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+  /** An executor that runs listeners on the thread that completes the task. */
+  static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override public void execute(@NonNull Runnable command) {
+      command.run();
+    }
+  };
+
+  private final List<Listener> listeners = new ArrayList<>();
+  private boolean done;
+
+  ListenableFutureTask(Callable<V> callable) {
+    super(callable);
+  }
+
+  @Override public void addListener(@NonNull Runnable listener, @NonNull Executor executor) {
+    assertNotNull(listener, "listener");
+    assertNotNull(executor, "executor");
+    synchronized (listeners) {
+      if (!done) {
+        listeners.add(new Listener(listener, executor));
+        return;
+      }
+    }
+    executor.execute(listener);
+  }
+
+  @Override protected void done() {
+    List<Listener> completed;
+    synchronized (listeners) {
+      done = true;
+      completed = new ArrayList<>(listeners);
+      listeners.clear();
+    }
+    for (Listener listener : completed) {
+      try {
+        listener.executor.execute(listener.runnable);
+      } catch (RuntimeException ignored) {
+        // Don't let a failing listener or executor stop the others from running.
+      }
+    }
+  }
+
+  static final class Listener {
+    final Runnable runnable;
+    final Executor executor;
+
+    Listener(Runnable runnable, Executor executor) {
+      this.runnable = runnable;
+      this.executor = executor;
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.Message;
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.f2prateek.segment.android.Utils.assertNotNull;
+
+/**
+ * A queue of messages stored in a memory-mapped file. Messages are read and written by copying
+ * them to and from memory rather than with system calls for each access, which makes reading a
+ * batch of messages to upload much cheaper than with a {@link QueueFile}. Messages are stored as
+ * JSON, so they are uploaded without being decoded.
+ * <p>
+ * Use it by passing it to {@link Segment.Builder#queue(ObjectQueue)}:
+ * <pre><code>
+ *   File file = new File(context.getDir("segment-queue", Context.MODE_PRIVATE), "mapped");
+ *   MappedObjectQueue queue = new MappedObjectQueue.Builder(file).build();
+ *   Segment segment = new Segment.Builder().queue(queue)...build();
+ * </code></pre>
+ * Like {@link QueueFile}, this class is not thread safe.
+ */
+public final class MappedObjectQueue extends ObjectQueue<Message> {
+  /** When changes to the queue are forced to disk. */
+  public enum Sync {
+    /**
+     * Every add and remove is written to disk before it returns, so queued messages survive the
+     * device losing power. This matches {@link QueueFile}.
+     */
+    ALWAYS,
+    /**
+     * Changes are written to disk by the operating system in its own time, and when the queue is
+     * closed. Queued messages survive the app crashing or being killed, but may be lost if the
+     * device loses power.
+     */
+    NEVER
+  }
+
+  // File layout: a header of MAGIC, an unused int, and the positions of the first record and the
+  // end of the last record as a single long, so that they're always updated together. Records
+  // follow, each being its length as an int and its bytes.
+  private static final int MAGIC = 0x53454751;
+  private static final int POSITIONS_OFFSET = 8;
+  private static final int HEADER_LENGTH = 16;
+  private static final int INITIAL_LENGTH = 4096;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Sync sync;
+  private final MessageObjectQueueConverter converter;
+  private final RecordOutputStream recordOutputStream = new RecordOutputStream();
+  private MappedByteBuffer buffer;
+  private int capacity;
+  /** Position of the first record. */
+  private int head;
+  /** Position just after the last record. */
+  private int tail;
+  private int size;
+  /** Incremented on every change, so that iterators can detect them. */
+  private int modCount;
+  private boolean closed;
+
+  @Private MappedObjectQueue(File file, Sync sync, MessageObjectQueueConverter converter)
+      throws IOException {
+    this.sync = sync;
+    this.converter = converter;
+    this.file = new RandomAccessFile(file, "rw");
+    this.channel = this.file.getChannel();
+    try {
+      if (this.file.length() < HEADER_LENGTH) {
+        this.file.setLength(INITIAL_LENGTH);
+      }
+      map(this.file.length());
+      open(file);
+    } catch (IOException | RuntimeException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  private void map(long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Queue file is full.");
+    }
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    capacity = (int) length;
+  }
+
+  /** Reads the header of the file, or writes one if the file is new. */
+  private void open(File file) throws IOException {
+    int magic = buffer.getInt(0);
+    if (magic == 0) {
+      // A new file, or one that was created but never written to.
+      buffer.putInt(0, MAGIC);
+      head = HEADER_LENGTH;
+      tail = HEADER_LENGTH;
+      writePositions();
+      buffer.force();
+      return;
+    }
+    if (magic != MAGIC) {
+      throw new IOException(file + " is not a queue file.");
+    }
+
+    long positions = buffer.getLong(POSITIONS_OFFSET);
+    head = (int) (positions >>> 32);
+    tail = (int) positions;
+    if (head < HEADER_LENGTH || head > tail || tail > capacity) {
+      throw new IOException(file + " is corrupt.");
+    }
+    for (int position = head; position < tail; size++) {
+      int length = position + 4 <= tail ? buffer.getInt(position) : -1;
+      if (length < 0 || length > tail - position - 4) {
+        throw new IOException(file + " is corrupt.");
+      }
+      position += 4 + length;
+    }
+  }
+
+  private void writePositions() {
+    buffer.putLong(POSITIONS_OFFSET, ((long) head << 32) | tail);
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("closed");
+    }
+  }
+
+  /** Returns null, since messages are not stored in a {@link QueueFile}. */
+  @Override public @Nullable QueueFile file() {
+    return null;
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  @Override public void add(Message message) throws IOException {
+    checkNotClosed();
+    recordOutputStream.reset();
+    converter.toStream(message, recordOutputStream);
+    int length = recordOutputStream.size();
+    ensureCapacity(4 + length);
+
+    buffer.putInt(tail, length);
+    ByteBuffer target = buffer.duplicate();
+    target.position(tail + 4);
+    target.put(recordOutputStream.buffer(), 0, length);
+    if (sync == Sync.ALWAYS) {
+      // Make sure the record is on disk before the header refers to it.
+      buffer.force();
+    }
+    tail += 4 + length;
+    writePositions();
+    size++;
+    modCount++;
+    if (sync == Sync.ALWAYS) {
+      buffer.force();
+    }
+  }
+
+  /**
+   * Makes room for {@code recordLength} bytes at the tail, by moving the records to the start of
+   * the file if that leaves enough room, or by growing it otherwise.
+   */
+  private void ensureCapacity(int recordLength) throws IOException {
+    long required = (long) tail + recordLength;
+    if (required <= capacity) {
+      return;
+    }
+
+    int used = tail - head;
+    // Only move records if they won't overwrite themselves, so the file can't be left with a
+    // header that refers to records that were partially overwritten.
+    if (HEADER_LENGTH + used + recordLength <= capacity && head - HEADER_LENGTH >= used) {
+      ByteBuffer source = buffer.duplicate();
+      source.position(head);
+      source.limit(tail);
+      ByteBuffer target = buffer.duplicate();
+      target.position(HEADER_LENGTH);
+      target.put(source);
+      if (sync == Sync.ALWAYS) {
+        buffer.force();
+      }
+      head = HEADER_LENGTH;
+      tail = HEADER_LENGTH + used;
+      writePositions();
+      modCount++;
+      return;
+    }
+
+    long length = capacity;
+    while (length < required) {
+      length <<= 1;
+    }
+    file.setLength(length);
+    map(length);
+  }
+
+  @Override public @Nullable Message peek() throws IOException {
+    checkNotClosed();
+    if (size == 0) {
+      return null;
+    }
+    return converter.from(readRecord(head));
+  }
+
+  private byte[] readRecord(int position) {
+    byte[] record = new byte[buffer.getInt(position)];
+    ByteBuffer source = buffer.duplicate();
+    source.position(position + 4);
+    source.get(record);
+    return record;
+  }
+
+  @Override public void remove(int n) throws IOException {
+    checkNotClosed();
+    if (n < 0) {
+      throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
+    }
+    if (n > size) {
+      throw new IllegalArgumentException(
+          "Cannot remove more elements (" + n + ") than present in queue (" + size + ").");
+    }
+    if (n == 0) {
+      return;
+    }
+
+    if (n == size) {
+      head = HEADER_LENGTH;
+      tail = HEADER_LENGTH;
+    } else {
+      for (int i = 0; i < n; i++) {
+        head += 4 + buffer.getInt(head);
+      }
+    }
+    writePositions();
+    size -= n;
+    modCount++;
+    if (sync == Sync.ALWAYS) {
+      buffer.force();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    buffer.force();
+    file.close();
+  }
+
+  /** Returns the converter messages are written with. */
+  MessageObjectQueueConverter converter() {
+    return converter;
+  }
+
+  /** Returns the stored records, which are messages encoded as JSON. */
+  Iterable<byte[]> records() {
+    return new Iterable<byte[]>() {
+      @Override public Iterator<byte[]> iterator() {
+        return new RecordIterator();
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator over the messages in this queue, from the head. Throws {@link
+   * IllegalStateException} from {@link Iterator#next()} if a message can't be decoded.
+   */
+  @Override public @NonNull Iterator<Message> iterator() {
+    final RecordIterator records = new RecordIterator();
+    return new Iterator<Message>() {
+      @Override public boolean hasNext() {
+        return records.hasNext();
+      }
+
+      @Override public Message next() {
+        try {
+          return converter.from(records.next());
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to decode message.", e);
+        }
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override public String toString() {
+    return "MappedObjectQueue{size=" + size + ", sync=" + sync + '}';
+  }
+
+  private final class RecordIterator implements Iterator<byte[]> {
+    private final int expectedModCount = modCount;
+    private int position = head;
+    private int remaining = size;
+
+    @Override public boolean hasNext() {
+      checkNotClosed();
+      checkForComodification();
+      return remaining > 0;
+    }
+
+    @Override public byte[] next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      byte[] record = readRecord(position);
+      position += 4 + record.length;
+      remaining--;
+      return record;
+    }
+
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void checkForComodification() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  /** Gives access to its buffer, so records can be copied to the file without another copy. */
+  static final class RecordOutputStream extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /** Fluent API to open instances of {@link MappedObjectQueue}. */
+  public static final class Builder {
+    private final File file;
+    private Sync sync = Sync.ALWAYS;
+
+    /** Start constructing a queue stored in {@code file}, which is created if it doesn't exist. */
+    public Builder(@NonNull File file) {
+      this.file = assertNotNull(file, "file");
+    }
+
+    /** Set when changes are forced to disk. Uses {@link Sync#ALWAYS} by default. */
+    @CheckResult public @NonNull Builder sync(@NonNull Sync sync) {
+      this.sync = assertNotNull(sync, "sync");
+      return this;
+    }
+
+    /** Opens the queue, creating the file if it doesn't exist. */
+    public @NonNull MappedObjectQueue build() throws IOException {
+      return new MappedObjectQueue(file, sync, new MessageObjectQueueConverter());
+    }
+  }
+}
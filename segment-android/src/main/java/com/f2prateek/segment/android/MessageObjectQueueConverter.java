@@ -1,32 +1,64 @@
 package com.f2prateek.segment.android;
 
-import android.util.JsonReader;
-import android.util.JsonWriter;
+import android.support.annotation.Nullable;
 import com.f2prateek.segment.model.Message;
 import com.squareup.tape2.ObjectQueue;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import okio.Buffer;
 
+/**
+ * Stores messages as JSON. Records written by {@link BinaryMessageObjectQueueConverter} are still
+ * read, so a queue can be switched back from the binary format.
+ */
 final class MessageObjectQueueConverter implements ObjectQueue.Converter<Message> {
+  private final BinaryMessageObjectQueueConverter binaryConverter;
+  /**
+   * The size of the last message written by {@link #toStream}, so that it needn't be encoded again
+   * to measure it. Only read by the thread that writes messages.
+   */
+  private long lastSize;
+
+  MessageObjectQueueConverter() {
+    this(null);
+  }
+
+  /** @param dictionary used to read binary records that refer to shared context. */
+  MessageObjectQueueConverter(@Nullable ContextDictionary dictionary) {
+    binaryConverter = new BinaryMessageObjectQueueConverter(dictionary);
+  }
+
+  /** Returns true if the record was stored as JSON rather than in the binary format. */
+  static boolean isJson(byte[] bytes) {
+    return bytes.length > 0 && bytes[0] == '{';
+  }
+
+  static Message fromJson(byte[] bytes) throws IOException {
+    return JsonUtils.fromJson(new Buffer().write(bytes));
+  }
+
   @Override public Message from(byte[] bytes) throws IOException {
-    InputStream is = new ByteArrayInputStream(bytes);
-    JsonReader reader = new JsonReader(new InputStreamReader(is));
-    return JsonUtils.fromJson(reader);
+    if (!isJson(bytes)) {
+      return binaryConverter.from(bytes);
+    }
+    return fromJson(bytes);
   }
 
   @Override public void toStream(Message m, OutputStream bytes) throws IOException {
-    CountingOutputStream countingOutputStream = new CountingOutputStream(bytes);
-    JsonWriter writer = new JsonWriter(new OutputStreamWriter(countingOutputStream));
-    JsonUtils.toJson(writer, m);
-    writer.close();
+    Buffer buffer = new Buffer();
+    JsonUtils.toJson(buffer, m);
 
-    long count = countingOutputStream.getCount();
+    long count = buffer.size();
     if (count > JsonUtils.MAX_MESSAGE_SIZE) {
+      buffer.clear();
       throw new JsonUtils.MessageTooLargeException(m, count);
     }
+    lastSize = count;
+    buffer.writeTo(bytes);
+  }
+
+  /** Returns the size of the last message written by {@link #toStream}. */
+  long lastSize() {
+    return lastSize;
   }
 }
@@ -2,35 +2,99 @@ package com.f2prateek.segment.android;
 
 import com.f2prateek.segment.model.Message;
 import java.util.List;
-import java.util.concurrent.Future;
 
 class RealInterceptorChain implements Interceptor.Chain {
   private final int index;
-  final Message message;
+  private final Draft draft;
   private final List<Interceptor> interceptors;
   final Transporter transporter;
+  /**
+   * Set once this chain proceeds with its draft. Later interceptors then edit the same draft, so
+   * its message can no longer be read or edited here.
+   */
+  private boolean draftShared;
 
-  RealInterceptorChain(int index, Message message, List<Interceptor> interceptors,
+  RealInterceptorChain(int index, Draft draft, List<Interceptor> interceptors,
       Transporter transporter) {
     this.index = index;
-    this.message = message;
+    this.draft = draft;
     this.interceptors = interceptors;
     this.transporter = transporter;
   }
 
+  /** Runs the message through all interceptors and transports it. */
+  static ListenableFuture<Message> proceed(Message message, List<Interceptor> interceptors,
+      Transporter transporter) {
+    if (interceptors.isEmpty()) {
+      return transporter.enqueue(message);
+    }
+    Interceptor.Chain chain =
+        new RealInterceptorChain(1, new Draft(message), interceptors, transporter);
+    return interceptors.get(0).intercept(chain);
+  }
+
   @Override public Message message() {
-    return message;
+    checkDraftNotShared("message");
+    return draft.message();
+  }
+
+  @Override public Message.Builder<?, ?> edit() {
+    checkDraftNotShared("edit");
+    return draft.edit();
   }
 
-  @Override public Future<Message> proceed(Message message) {
+  @Override public ListenableFuture<Message> proceed() {
+    draftShared = true;
+    return proceed(draft);
+  }
+
+  @Override public ListenableFuture<Message> proceed(Message message) {
+    return proceed(new Draft(message));
+  }
+
+  private void checkDraftNotShared(String method) {
+    if (draftShared) {
+      throw new IllegalStateException(method + "() must be called before proceed()");
+    }
+  }
+
+  private ListenableFuture<Message> proceed(Draft draft) {
     // If there's another interceptor in the chain, call that.
     if (index < interceptors.size()) {
       Interceptor.Chain chain =
-          new RealInterceptorChain(index + 1, message, interceptors, transporter);
+          new RealInterceptorChain(index + 1, draft, interceptors, transporter);
       return interceptors.get(index).intercept(chain);
     }
 
-    // No more interceptors. Transport.
-    return transporter.enqueue(message);
+    // No more interceptors. Build any pending changes and transport.
+    return transporter.enqueue(draft.message());
+  }
+
+  /**
+   * A message along with changes that haven't been built yet. Interceptors that call {@link
+   * #proceed()} share a single draft, so their changes are built into one message.
+   */
+  static final class Draft {
+    private Message message;
+    private Message.Builder<?, ?> builder;
+
+    Draft(Message message) {
+      this.message = message;
+    }
+
+    Message message() {
+      if (builder != null) {
+        message = builder.build();
+        builder = null;
+      }
+      return message;
+    }
+
+    Message.Builder<?, ?> edit() {
+      if (builder == null) {
+        builder = message.toBuilder();
+      }
+      return builder;
+    }
   }
-}
\ No newline at end of file
+}
@@ -10,6 +10,7 @@ import com.f2prateek.segment.model.AliasMessage;
 import com.f2prateek.segment.model.GroupMessage;
 import com.f2prateek.segment.model.IdentifyMessage;
 import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.MessageIdGenerator;
 import com.f2prateek.segment.model.ScreenMessage;
 import com.f2prateek.segment.model.TrackMessage;
 import com.squareup.tape2.ObjectQueue;
@@ -21,7 +22,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import okhttp3.Credentials;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
@@ -37,13 +40,15 @@ public final class Segment {
   private final Transporter transporter;
   private final StringCache userIdCache;
   private final StringCache anonymousIdCache;
+  @Nullable private final MessageIdGenerator messageIdGenerator;
 
   @Private Segment(List<Interceptor> interceptors, Transporter transporter, StringCache userIdCache,
-      StringCache anonymousIdCache) {
+      StringCache anonymousIdCache, @Nullable MessageIdGenerator messageIdGenerator) {
     this.interceptors = interceptors;
     this.transporter = transporter;
     this.userIdCache = userIdCache;
     this.anonymousIdCache = anonymousIdCache;
+    this.messageIdGenerator = messageIdGenerator;
   }
 
   private <T extends Message, V extends Message.Builder> V lift(Message.Builder<T, V> builder) {
@@ -55,6 +60,10 @@ public final class Segment {
       builder.userId(userId);
     }
 
+    if (messageIdGenerator != null) {
+      builder.messageIdGenerator(messageIdGenerator);
+    }
+
     //noinspection unchecked
     return (V) builder;
   }
@@ -146,11 +155,11 @@ public final class Segment {
   /**
    * Enqueue a {@link Message} to be uploaded at a later time and returns a Future. By default, the
    * Future's {@link Future#get()} method blocks until the event is queued but interceptors may
-   * change this behaviour.
+   * change this behaviour. Use {@link ListenableFuture#addListener} to be notified once the event
+   * is queued without blocking a thread.
    */
-  public @Nullable Future<Message> enqueue(Message message) {
-    Interceptor.Chain chain = new RealInterceptorChain(0, message, interceptors, transporter);
-    return chain.proceed(message);
+  public @Nullable ListenableFuture<Message> enqueue(Message message) {
+    return RealInterceptorChain.proceed(message, interceptors, transporter);
   }
 
   /**
@@ -163,15 +172,22 @@ public final class Segment {
   }
 
   /**
-   * Flushes all messages in the queue to the server, and returns a Future whose {@link
-   * Future#get()} method blocks until completion.
+   * Flushes all messages in the queue to the server, one batch at a time, and returns a Future
+   * whose {@link Future#get()} method blocks until completion and returns the uploaded messages.
+   * Only the messages uploaded first, up to a few batches, are returned. A flush stops early once
+   * it exceeds the limits set by {@link Builder#maxFlushBytes(long)} or {@link
+   * Builder#maxFlushDuration(long, TimeUnit)}, or if a batch fails to upload.
    */
-  public @NonNull Future<List<Message>> flush() {
+  public @NonNull ListenableFuture<List<Message>> flush() {
     return transporter.flush();
   }
 
   public static class Builder {
     private static final HttpUrl DEFAULT_BASE_URL = HttpUrl.parse("https://api.segment.io");
+    private static final int DEFAULT_FLUSH_QUEUE_SIZE = 20;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long DEFAULT_MAX_FLUSH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
 
     String writeKey;
     Context context;
@@ -180,6 +196,16 @@ public final class Segment {
     Callback callback;
     HttpUrl baseUrl;
     ObjectQueue<Message> queue;
+    int flushQueueSize;
+    long flushQueueBytes;
+    long flushIntervalMillis;
+    long maxFlushBytes;
+    long maxFlushMillis;
+    int maxConcurrentUploads;
+    boolean gzip;
+    boolean binaryQueue;
+    boolean asyncInitialization;
+    MessageIdGenerator messageIdGenerator;
 
     /**
      * Provide the context to be used by the client. The context must declare that it uses the
@@ -226,7 +252,8 @@ public final class Segment {
 
     /**
      * Provide the queue used by the client. A {@link QueueFile} backed implementation is used by
-     * default.
+     * default. Use a {@link MappedObjectQueue} to read and write messages through memory-mapped I/O
+     * instead.
      */
     @CheckResult public @NonNull Builder queue(@NonNull ObjectQueue<Message> queue) {
       this.queue = assertNotNull(queue, "queue");
@@ -262,6 +289,123 @@ public final class Segment {
       return this;
     }
 
+    /**
+     * Set the number of queued messages that triggers an automatic flush. Uses {@code 20} by
+     * default.
+     */
+    @CheckResult public @NonNull Builder flushQueueSize(int flushQueueSize) {
+      if (flushQueueSize <= 0) {
+        throw new IllegalArgumentException("flushQueueSize must be greater than 0.");
+      }
+      this.flushQueueSize = flushQueueSize;
+      return this;
+    }
+
+    /**
+     * Set the encoded size (in bytes) of queued messages that triggers an automatic flush. Uses the
+     * maximum size of a single batch (500kb) by default.
+     */
+    @CheckResult public @NonNull Builder flushQueueBytes(long flushQueueBytes) {
+      if (flushQueueBytes <= 0) {
+        throw new IllegalArgumentException("flushQueueBytes must be greater than 0.");
+      }
+      this.flushQueueBytes = flushQueueBytes;
+      return this;
+    }
+
+    /**
+     * Set the maximum time to wait after an upload before flushing again automatically. Uses
+     * {@code 30} seconds by default. While uploads are failing, this is doubled after every failure
+     * (up to 64 times), and the queue size and byte thresholds don't trigger flushes.
+     */
+    @CheckResult public @NonNull Builder flushInterval(long flushInterval, @NonNull TimeUnit unit) {
+      assertNotNull(unit, "unit");
+      if (flushInterval <= 0) {
+        throw new IllegalArgumentException("flushInterval must be greater than 0.");
+      }
+      this.flushIntervalMillis = unit.toMillis(flushInterval);
+      return this;
+    }
+
+    /**
+     * Set the encoded size (in bytes) of messages after which a single flush stops uploading
+     * batches. Remaining messages are uploaded by the next flush. Unlimited by default.
+     */
+    @CheckResult public @NonNull Builder maxFlushBytes(long maxFlushBytes) {
+      if (maxFlushBytes <= 0) {
+        throw new IllegalArgumentException("maxFlushBytes must be greater than 0.");
+      }
+      this.maxFlushBytes = maxFlushBytes;
+      return this;
+    }
+
+    /**
+     * Set the time after which a single flush stops uploading batches. Remaining messages are
+     * uploaded by the next flush. Uses {@code 1} minute by default.
+     */
+    @CheckResult public @NonNull Builder maxFlushDuration(long maxFlushDuration,
+        @NonNull TimeUnit unit) {
+      assertNotNull(unit, "unit");
+      if (maxFlushDuration <= 0) {
+        throw new IllegalArgumentException("maxFlushDuration must be greater than 0.");
+      }
+      this.maxFlushMillis = unit.toMillis(maxFlushDuration);
+      return this;
+    }
+
+    /**
+     * Set the number of batches that may be uploaded at once while flushing. Uses {@code 2} by
+     * default.
+     */
+    @CheckResult public @NonNull Builder maxConcurrentUploads(int maxConcurrentUploads) {
+      if (maxConcurrentUploads <= 0) {
+        throw new IllegalArgumentException("maxConcurrentUploads must be greater than 0.");
+      }
+      this.maxConcurrentUploads = maxConcurrentUploads;
+      return this;
+    }
+
+    /**
+     * Compress uploaded batches with gzip. This reduces the number of bytes sent over the network
+     * at the cost of some CPU time. Disabled by default.
+     */
+    @CheckResult public @NonNull Builder gzip(boolean gzip) {
+      this.gzip = gzip;
+      return this;
+    }
+
+    /**
+     * Store queued messages in a compact binary format rather than as JSON. This makes the queue
+     * file smaller and messages faster to write and read, but they have to be converted to JSON
+     * when they are uploaded. Messages already queued in either format are still read, so this can
+     * be changed between releases. Has no effect if a custom {@link #queue(ObjectQueue)} is used.
+     * Disabled by default.
+     */
+    @CheckResult public @NonNull Builder binaryQueue(boolean binaryQueue) {
+      this.binaryQueue = binaryQueue;
+      return this;
+    }
+
+    /**
+     * Open the queue and set up the HTTP client on a background thread, so that {@link #build()}
+     * returns sooner. Messages enqueued before this completes are held in memory, and the Futures
+     * returned for them complete once they are written. Disabled by default.
+     */
+    @CheckResult public @NonNull Builder asyncInitialization(boolean asyncInitialization) {
+      this.asyncInitialization = asyncInitialization;
+      return this;
+    }
+
+    /**
+     * Set the generator used to create IDs for messages built by the client. Uses {@link
+     * MessageIdGenerator#TIME_ORDERED} by default.
+     */
+    @CheckResult public @NonNull Builder messageIdGenerator(
+        @NonNull MessageIdGenerator messageIdGenerator) {
+      this.messageIdGenerator = assertNotNull(messageIdGenerator, "messageIdGenerator");
+      return this;
+    }
+
     @CheckResult public @NonNull Segment build() {
       assertNotNull(context, "context");
       assertNotNull(writeKey, "writeKey");
@@ -273,6 +417,82 @@ public final class Segment {
         interceptors = Collections.unmodifiableList(this.interceptors);
       }
 
+      final HttpUrl baseUrl;
+      if (this.baseUrl == null) {
+        baseUrl = DEFAULT_BASE_URL;
+      } else {
+        baseUrl = this.baseUrl;
+      }
+
+      // Copied, since the builder may change once this returns.
+      final Context context = this.context;
+      final String writeKey = this.writeKey;
+      final OkHttpClient client = this.client;
+      final boolean gzip = this.gzip;
+      final boolean binaryQueue = this.binaryQueue;
+      final ObjectQueue<Message> queue = this.queue;
+      Callable<Transporter.Backend> backend;
+      if (asyncInitialization) {
+        backend = new Callable<Transporter.Backend>() {
+          @Override public Transporter.Backend call() {
+            return createBackend(context, writeKey, client, gzip, baseUrl, binaryQueue, queue);
+          }
+        };
+      } else {
+        backend = Transporter.Backend.immediate(
+            createBackend(context, writeKey, client, gzip, baseUrl, binaryQueue, queue));
+      }
+
+      int flushQueueSize = this.flushQueueSize;
+      if (flushQueueSize == 0) {
+        flushQueueSize = DEFAULT_FLUSH_QUEUE_SIZE;
+      }
+
+      long flushQueueBytes = this.flushQueueBytes;
+      if (flushQueueBytes == 0) {
+        flushQueueBytes = JsonUtils.MAX_BATCH_SIZE;
+      }
+
+      long flushIntervalMillis = this.flushIntervalMillis;
+      if (flushIntervalMillis == 0) {
+        flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+      }
+
+      long maxFlushBytes = this.maxFlushBytes;
+      if (maxFlushBytes == 0) {
+        maxFlushBytes = Long.MAX_VALUE;
+      }
+
+      long maxFlushMillis = this.maxFlushMillis;
+      if (maxFlushMillis == 0) {
+        maxFlushMillis = DEFAULT_MAX_FLUSH_MILLIS;
+      }
+
+      int maxConcurrentUploads = this.maxConcurrentUploads;
+      if (maxConcurrentUploads == 0) {
+        maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+      }
+
+      Transporter transporter =
+          new Transporter(backend, callback, flushQueueSize, flushQueueBytes, flushIntervalMillis,
+              maxFlushBytes, maxFlushMillis, maxConcurrentUploads);
+
+      SharedPreferences sharedPreferences =
+          context.getSharedPreferences("segment_" + writeKey.hashCode(), Context.MODE_PRIVATE);
+      StringCache userIdCache = new StringCache(sharedPreferences, "userId");
+      StringCache anonymousIdCache = new StringCache(sharedPreferences, "anonymousId");
+      if (isNullOrEmpty(anonymousIdCache.get())) {
+        anonymousIdCache.set(UUID.randomUUID().toString());
+      }
+
+      return new Segment(interceptors, transporter, userIdCache, anonymousIdCache,
+          messageIdGenerator);
+    }
+
+    /** Opens the queue and sets up the HTTP client, which may take a while. */
+    @Private static Transporter.Backend createBackend(Context context, final String writeKey,
+        @Nullable OkHttpClient client, boolean gzip, HttpUrl baseUrl, boolean binaryQueue,
+        @Nullable ObjectQueue<Message> queue) {
       okhttp3.Interceptor authInterceptor = new okhttp3.Interceptor() {
         public okhttp3.Response intercept(Chain chain) throws IOException {
           okhttp3.Request request = chain.request()
@@ -283,49 +503,55 @@ public final class Segment {
         }
       };
 
-      OkHttpClient client = this.client;
+      OkHttpClient.Builder clientBuilder;
       if (client == null) {
-        client = new OkHttpClient.Builder().addInterceptor(authInterceptor).build();
+        clientBuilder = new OkHttpClient.Builder();
       } else {
-        client = client.newBuilder().addInterceptor(authInterceptor).build();
+        clientBuilder = client.newBuilder();
       }
-
-      HttpUrl baseUrl = this.baseUrl;
-      if (baseUrl == null) {
-        baseUrl = DEFAULT_BASE_URL;
+      clientBuilder.addInterceptor(authInterceptor);
+      if (gzip) {
+        clientBuilder.addInterceptor(new GzipRequestInterceptor());
       }
 
-      ObjectQueue<Message> queue = this.queue;
-      if (queue == null) {
+      Iterable<byte[]> queueRecords = null;
+      ObjectQueue.Converter<Message> converter = null;
+      if (queue instanceof MappedObjectQueue) {
+        // Its records are JSON, so they can be uploaded as they are.
+        queueRecords = ((MappedObjectQueue) queue).records();
+        converter = ((MappedObjectQueue) queue).converter();
+      } else if (queue == null) {
         try {
           File directory = context.getDir("segment-queue", Context.MODE_PRIVATE);
           File file = new File(directory, writeKey.hashCode() + ".segment");
-          ObjectQueue.Converter<Message> converter = new MessageObjectQueueConverter();
+          ContextDictionary dictionary =
+              new ContextDictionary(new File(directory, writeKey.hashCode() + ".contexts"));
+          if (binaryQueue) {
+            converter = new BinaryMessageObjectQueueConverter(dictionary);
+          } else {
+            converter = new MessageObjectQueueConverter(dictionary);
+          }
           QueueFile qf = new QueueFile.Builder(file).build();
           queue = ObjectQueue.create(qf, converter);
+          queueRecords = qf;
+          if (qf.isEmpty()) {
+            // Nothing refers to the shared context stored by previous sessions.
+            dictionary.clear();
+          }
         } catch (IOException e) {
           queue = ObjectQueue.createInMemory();
         }
       }
 
-      Retrofit retrofit = new Retrofit.Builder().client(client) //
+      Retrofit retrofit = new Retrofit.Builder().client(clientBuilder.build()) //
           .baseUrl(baseUrl) //
-          .addConverterFactory(new MessageRetrofitConverterFactory()) //
           .build();
 
       TrackingAPI trackingAPI = retrofit.create(TrackingAPI.class);
-
-      Transporter transporter = new Transporter(queue, trackingAPI, callback);
-
-      SharedPreferences sharedPreferences =
-          context.getSharedPreferences("segment_" + writeKey.hashCode(), Context.MODE_PRIVATE);
-      StringCache userIdCache = new StringCache(sharedPreferences, "userId");
-      StringCache anonymousIdCache = new StringCache(sharedPreferences, "anonymousId");
-      if (isNullOrEmpty(anonymousIdCache.get())) {
-        anonymousIdCache.set(UUID.randomUUID().toString());
+      if (converter == null) {
+        return new Transporter.Backend(queue, queueRecords, trackingAPI);
       }
-
-      return new Segment(interceptors, transporter, userIdCache, anonymousIdCache);
+      return new Transporter.Backend(queue, queueRecords, converter, trackingAPI);
     }
   }
 }
@@ -4,24 +4,33 @@ import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+/**
+ * A string stored in {@link SharedPreferences}. The value is read once and kept in memory, so reads
+ * don't touch the preferences. Writes update the memory copy and are persisted asynchronously.
+ */
 class StringCache {
   private final SharedPreferences sharedPreferences;
   private final String key;
+  private volatile String value;
 
   StringCache(SharedPreferences sharedPreferences, String key) {
     this.sharedPreferences = sharedPreferences;
     this.key = key;
+    this.value = sharedPreferences.getString(key, null);
   }
 
-  void set(@NonNull String s) {
+  // Synchronized so that the persisted value matches the memory copy when writes race.
+  synchronized void set(@NonNull String s) {
+    value = s;
     sharedPreferences.edit().putString(key, s).apply();
   }
 
   @Nullable String get() {
-    return sharedPreferences.getString(key, null);
+    return value;
   }
 
-  void clear() {
+  synchronized void clear() {
+    value = null;
     sharedPreferences.edit().remove(key).apply();
   }
 }
@@ -1,11 +1,10 @@
 package com.f2prateek.segment.android;
 
-import com.f2prateek.segment.model.Batch;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.POST;
 
 /** REST interface for the Segment Tracking API. */
 interface TrackingAPI {
-  @POST("/v1/batch") Call<Void> batch(@Body Batch batch);
+  @POST("/v1/batch") Call<Void> batch(@Body BatchRequestBody batch);
 }
\ No newline at end of file
@@ -2,79 +2,762 @@ package com.f2prateek.segment.android;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import com.f2prateek.segment.model.Batch;
 import com.f2prateek.segment.model.Message;
 import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
 import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import retrofit2.Response;
 
 import static com.f2prateek.segment.android.Callback.Event.PERSIST;
 import static com.f2prateek.segment.android.Callback.Event.UPLOAD;
 
+/**
+ * Persists messages and uploads them in batches. Messages are written to the queue on a dedicated
+ * persistence thread, so they are never held up by uploads. Flushes are coordinated on a separate
+ * thread, which reads batches from the queue and hands them to the upload executor.
+ */
 class Transporter {
-  @Private final ObjectQueue<Message> queue;
-  @Private final TrackingAPI trackingAPI;
-  private final ExecutorService executor;
+  /** Maximum number of times the flush interval is doubled after flushes fail. */
+  private static final int MAX_BACKOFF_DOUBLINGS = 6;
+  /**
+   * Encoded size of the uploaded messages a flush returns. Messages uploaded after that are not
+   * returned, so that draining a large queue doesn't hold every message in memory.
+   */
+  static final long MAX_RETURNED_BYTES = 4 * JsonUtils.MAX_BATCH_SIZE;
+
+  /**
+   * Creates {@link #queue}, {@link #queueRecords} and {@link #trackingAPI} on the persistence
+   * thread.
+   * Neither thread may touch those fields before this completes.
+   */
+  private final FutureTask<Backend> initialization;
+  /** Guarded by itself, since it is accessed by both the persistence and the flush thread. */
+  @Private ObjectQueue<Message> queue;
+  /**
+   * The records backing {@link #queue}, such as its {@link QueueFile}, if they are messages encoded
+   * by {@link MessageObjectQueueConverter} or {@link BinaryMessageObjectQueueConverter}. JSON
+   * records are then uploaded as they are stored, without decoding and encoding each message again.
+   */
+  @Nullable private Iterable<byte[]> queueRecords;
+  /** Decodes the binary records in {@link #queueRecords}. */
+  private ObjectQueue.Converter<Message> converter;
+  /**
+   * The converter {@link #queue} writes messages with, if it stores them as JSON. Messages are then
+   * measured as they are written, rather than being encoded separately to measure them.
+   */
+  @Nullable private MessageObjectQueueConverter jsonConverter;
+  @Private TrackingAPI trackingAPI;
+  private final ScheduledExecutorService persistExecutor;
+  private final ScheduledExecutorService flushExecutor;
+  private final ExecutorService uploadExecutor;
   @Nullable private final Callback callback;
+  private final int flushQueueSize;
+  private final long flushQueueBytes;
+  private final long flushIntervalMillis;
+  private final long maxFlushBytes;
+  private final long maxFlushMillis;
+  private final int maxConcurrentUploads;
+
+  /**
+   * Encoded size of the messages enqueued by this instance that haven't been uploaded yet. Messages
+   * left over from a previous session are not accounted for.
+   */
+  private final AtomicLong queueBytes = new AtomicLong();
+  private final AtomicBoolean flushPending = new AtomicBoolean();
+  /**
+   * Set once the queue has grown past the flush thresholds and a flush was submitted for it.
+   * Cleared when the queue drops below them or a flush succeeds, so that a queue that stays past
+   * them doesn't submit a flush for every message.
+   */
+  private final AtomicBoolean thresholdFlushSubmitted = new AtomicBoolean();
+  /**
+   * Set while flushes are failing, such as when the device is offline. The flush thresholds are
+   * ignored until a scheduled flush succeeds.
+   */
+  private volatile boolean backingOff;
+  /** Number of flushes in a row that have failed. Only accessed from the flush thread. */
+  private int failedFlushes;
+  /** Only accessed from the flush thread. */
+  private ScheduledFuture<?> scheduledFlush;
+  /** Messages waiting to be written to the queue. Guarded by itself. */
+  private final List<PendingWrite<?>> pendingWrites = new ArrayList<>();
+  /** Guarded by {@link #pendingWrites}. */
+  private boolean commitScheduled;
+
+  @Private final Runnable commitTask = new Runnable() {
+    @Override public void run() {
+      commit();
+    }
+  };
+
+  @Private final Callable<List<Message>> flushTask = new Callable<List<Message>>() {
+    @Override public List<Message> call() throws Exception {
+      flushPending.set(false);
+      boolean succeeded = false;
+      try {
+        awaitInitialization();
+        List<Message> uploaded = performFlush();
+        succeeded = true;
+        return uploaded;
+      } finally {
+        if (succeeded) {
+          failedFlushes = 0;
+          backingOff = false;
+          thresholdFlushSubmitted.set(false);
+        } else {
+          failedFlushes++;
+          backingOff = true;
+        }
+        scheduleFlush();
+      }
+    }
+  };
+
+  /** Creates a transporter for a backend that is already set up. */
+  Transporter(ObjectQueue<Message> queue, @Nullable Iterable<byte[]> queueRecords,
+      TrackingAPI trackingAPI, @Nullable Callback callback, int flushQueueSize,
+      long flushQueueBytes, long flushIntervalMillis, long maxFlushBytes, long maxFlushMillis,
+      int maxConcurrentUploads) {
+    this(Backend.immediate(new Backend(queue, queueRecords, trackingAPI)), callback, flushQueueSize,
+        flushQueueBytes, flushIntervalMillis, maxFlushBytes, maxFlushMillis, maxConcurrentUploads);
+  }
 
-  Transporter(ObjectQueue<Message> queue, TrackingAPI trackingAPI, @Nullable Callback callback) {
-    this.queue = queue;
-    this.trackingAPI = trackingAPI;
+  /**
+   * Creates a transporter whose backend is created on the persistence thread. Messages enqueued in
+   * the meantime are held in memory, and written once the backend is ready.
+   *
+   * @param flushQueueSize number of queued messages that triggers a flush.
+   * @param flushQueueBytes encoded size of queued messages that triggers a flush.
+   * @param flushIntervalMillis maximum time between flushes.
+   * @param maxFlushBytes encoded size of messages after which a flush stops uploading batches.
+   * @param maxFlushMillis time after which a flush stops uploading batches.
+   * @param maxConcurrentUploads number of batches that may be uploaded at once.
+   */
+  Transporter(Callable<Backend> backend, @Nullable Callback callback, int flushQueueSize,
+      long flushQueueBytes, long flushIntervalMillis, long maxFlushBytes, long maxFlushMillis,
+      int maxConcurrentUploads) {
     this.callback = callback;
-    executor = Executors.newSingleThreadExecutor();
+    this.flushQueueSize = flushQueueSize;
+    this.flushQueueBytes = flushQueueBytes;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.maxFlushBytes = maxFlushBytes;
+    this.maxFlushMillis = maxFlushMillis;
+    this.maxConcurrentUploads = maxConcurrentUploads;
+    persistExecutor = Executors.newSingleThreadScheduledExecutor();
+    flushExecutor = Executors.newSingleThreadScheduledExecutor();
+    uploadExecutor = Executors.newFixedThreadPool(maxConcurrentUploads);
+    initialization = new FutureTask<Backend>(backend) {
+      @Override protected void set(Backend backend) {
+        queue = backend.queue;
+        queueRecords = backend.queueRecords;
+        converter = backend.converter;
+        jsonConverter = backend.jsonConverter;
+        trackingAPI = backend.trackingAPI;
+        super.set(backend);
+      }
+    };
+    // Runs before any commit, since the executor runs tasks in order.
+    persistExecutor.submit(initialization);
+    flushExecutor.submit(new Runnable() {
+      @Override public void run() {
+        try {
+          awaitInitialization();
+          // Messages may be left over from a previous session.
+          flushIfNeeded();
+        } catch (IOException ignored) {
+          // Reported by every flush.
+        }
+        scheduleFlush();
+      }
+    });
+  }
+
+  /**
+   * Enqueues the message to be written to the queue, and returns a Future that completes once it
+   * has been written.
+   */
+  @NonNull <T extends Message> ListenableFuture<T> enqueue(@NonNull T message) {
+    PendingWrite<T> pendingWrite = new PendingWrite<>(message);
+    synchronized (pendingWrites) {
+      pendingWrites.add(pendingWrite);
+      if (!commitScheduled) {
+        persistExecutor.submit(commitTask);
+        commitScheduled = true;
+      }
+    }
+    return pendingWrite.future;
   }
 
-  @NonNull <T extends Message> Future<T> enqueue(@NonNull final T message) {
-    return executor.submit(new Callable<T>() {
-      @Override public T call() throws Exception {
+  /**
+   * Writes all pending messages to the queue and completes their futures. Each message is still
+   * written to the queue on its own, but messages enqueued while an earlier write is in progress
+   * are handed to this thread together, and the flush thresholds are checked once for all of them.
+   */
+  @Private void commit() {
+    List<PendingWrite<?>> writes;
+    synchronized (pendingWrites) {
+      if (pendingWrites.isEmpty()) {
+        return;
+      }
+      writes = new ArrayList<>(pendingWrites);
+      pendingWrites.clear();
+      commitScheduled = false;
+    }
+
+    boolean initialized;
+    try {
+      initialized = write(writes);
+    } finally {
+      // Never leave a caller waiting, even if a write failed unexpectedly.
+      for (PendingWrite<?> write : writes) {
+        write.future.run();
+      }
+    }
+    if (initialized) {
+      flushIfNeeded();
+    }
+  }
+
+  /**
+   * Writes the given messages to the queue, recording the error of any that fail. Returns false if
+   * the queue couldn't be created.
+   */
+  private boolean write(List<PendingWrite<?>> writes) {
+    try {
+      awaitInitialization();
+    } catch (IOException e) {
+      for (PendingWrite<?> write : writes) {
+        write.error = e;
+        if (callback != null) {
+          callback.error(PERSIST, write.message, e);
+        }
+      }
+      return false;
+    }
+
+    if (jsonConverter == null) {
+      // Measured before they're written, since the queue doesn't store messages as JSON.
+      for (PendingWrite<?> write : writes) {
         try {
-          queue.add(message);
-          if (callback != null) {
-            callback.success(PERSIST, message);
+          write.size = JsonUtils.sizeOf(write.message);
+          if (write.size > JsonUtils.MAX_MESSAGE_SIZE) {
+            write.error = new JsonUtils.MessageTooLargeException(write.message, write.size);
           }
-        } catch (IOException e) {
-          if (callback != null) {
-            callback.error(PERSIST, message, e);
+        } catch (IOException | RuntimeException e) {
+          // Such as a property that can't be encoded, which must not fail the rest of the group.
+          write.error = e;
+        }
+      }
+    }
+
+    synchronized (queue) {
+      for (PendingWrite<?> write : writes) {
+        if (write.error != null) {
+          continue;
+        }
+        try {
+          queue.add(write.message);
+          if (jsonConverter != null) {
+            // The converter rejects messages that are too large itself.
+            write.size = jsonConverter.lastSize();
           }
-          throw e;
+        } catch (IOException | RuntimeException e) {
+          write.error = e;
         }
+      }
+    }
 
-        return message;
+    for (PendingWrite<?> write : writes) {
+      if (write.error == null) {
+        queueBytes.addAndGet(write.size);
+        if (callback != null) {
+          callback.success(PERSIST, write.message);
+        }
+      } else if (callback != null) {
+        callback.error(PERSIST, write.message, write.error);
       }
-    });
+    }
+    return true;
   }
 
-  @NonNull Future<List<Message>> flush() {
-    return executor.submit(new Callable<List<Message>>() {
-      @Override public List<Message> call() throws Exception {
-        List<Message> messages = queue.peek(JsonUtils.MAX_BATCH_COUNT);
-        final Batch batch = new Batch.Builder().batch(messages).sentAt(new Date()).build();
+  /**
+   * Blocks until {@link #queue}, {@link #queueRecords} and {@link #trackingAPI} are set, or throws
+   * if they couldn't be created.
+   */
+  @Private void awaitInitialization() throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
         try {
-          Response response = trackingAPI.batch(batch).execute();
-          if (response.isSuccessful()) {
-            queue.clear();
+          initialization.get();
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new IOException("Unable to initialize.", e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Uploads queued messages. Messages enqueued before this is called are written to the queue
+   * first, so that they are uploaded too.
+   */
+  @NonNull ListenableFuture<List<Message>> flush() {
+    // Runs after the writes of any earlier messages, since the executor runs tasks in order.
+    final Future<?> earlierWrites = persistExecutor.submit(commitTask);
+    ListenableFutureTask<List<Message>> future =
+        new ListenableFutureTask<>(new Callable<List<Message>>() {
+          @Override public List<Message> call() throws Exception {
+            try {
+              earlierWrites.get();
+            } catch (ExecutionException ignored) {
+              // Reported by the futures of the messages that failed to be written.
+            }
+            return flushTask.call();
           }
+        });
+    flushExecutor.execute(future);
+    return future;
+  }
+
+  /**
+   * Stops this transporter's threads, once messages that were already enqueued have been written
+   * to the queue and uploads in progress have finished. Scheduled flushes are cancelled, and a
+   * flush in progress is interrupted. The queue may be closed once this returns.
+   */
+  void shutdown() throws InterruptedException {
+    persistExecutor.shutdown();
+    flushExecutor.shutdownNow();
+    uploadExecutor.shutdown();
+    persistExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    uploadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Submits a flush if the queue has just grown past the configured thresholds. Does nothing while
+   * flushes are failing, since those messages are retried by the scheduled flush.
+   */
+  @Private void flushIfNeeded() {
+    int queueSize;
+    synchronized (queue) {
+      queueSize = queue.size();
+    }
+    if (queueSize < flushQueueSize && queueBytes.get() < flushQueueBytes) {
+      thresholdFlushSubmitted.set(false);
+      return;
+    }
+    if (backingOff || !thresholdFlushSubmitted.compareAndSet(false, true)) {
+      return;
+    }
+    if (flushPending.compareAndSet(false, true)) {
+      flushExecutor.submit(flushTask);
+    }
+  }
+
+  /**
+   * Schedules the next time based flush, replacing any previously scheduled one. The interval is
+   * doubled for every flush in a row that failed, up to {@link #MAX_BACKOFF_DOUBLINGS} times.
+   */
+  @Private void scheduleFlush() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+    }
+    long delayMillis = flushIntervalMillis;
+    for (int i = 0; i < Math.min(failedFlushes, MAX_BACKOFF_DOUBLINGS); i++) {
+      if (delayMillis > Long.MAX_VALUE / 2) {
+        delayMillis = Long.MAX_VALUE;
+        break;
+      }
+      delayMillis *= 2;
+    }
+    scheduledFlush = flushExecutor.schedule(flushTask, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Uploads batches from the head of the queue until it is drained, the flush has uploaded {@link
+   * #maxFlushBytes} or has been running for {@link #maxFlushMillis}. Returns the uploaded
+   * messages, up to {@link #MAX_RETURNED_BYTES} of them.
+   * <p>
+   * Up to {@link #maxConcurrentUploads} batches are uploaded at once, and as many are read from
+   * the queue ahead of them while earlier ones are in flight. Batches are removed from the queue
+   * in order, so if a batch fails, any batches after it are retried by the next flush even if
+   * they were uploaded. The Tracking API deduplicates these by their message IDs. Batches the
+   * Tracking API rejects as invalid are removed and reported to the callback, and the flush
+   * carries on.
+   */
+  @Private List<Message> performFlush() throws IOException, InterruptedException {
+    List<Message> uploaded = new ArrayList<>();
+    List<byte[]> uploadedRecords = new ArrayList<>();
+    long returnedBytes = 0;
+    Deque<InFlightBatch> inFlight = new ArrayDeque<>();
+    long start = System.nanoTime();
+    long maxFlushNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushMillis);
+    // Messages that have been read from the queue but not removed yet.
+    int peekedCount = 0;
+    long flushedBytes = 0;
+    boolean exhausted = false;
+    // Batches that have been read ahead of the ones being uploaded.
+    Deque<QueuedBatch> readAhead = new ArrayDeque<>();
+    boolean lastReadAhead = false;
+    QueuedBatch next = null;
+
+    while (true) {
+      if (next == null && !exhausted) {
+        if (readAhead.isEmpty()) {
+          synchronized (queue) {
+            readAhead.addAll(
+                peekBatches(peekedCount, maxConcurrentUploads, maxFlushBytes - flushedBytes));
+          }
+          // Fewer batches means the end of the queue was reached.
+          lastReadAhead = readAhead.size() < maxConcurrentUploads;
+        }
+        next = readAhead.poll();
+        if (next == null) {
+          exhausted = true;
+        } else {
+          peekedCount += next.messages.size();
+          flushedBytes += next.messagesSize;
+          if ((lastReadAhead && readAhead.isEmpty()) || flushedBytes >= maxFlushBytes
+              || System.nanoTime() - start >= maxFlushNanos) {
+            exhausted = true;
+            readAhead.clear();
+          }
+        }
+      }
+
+      if (next != null && inFlight.size() < maxConcurrentUploads) {
+        inFlight.add(new InFlightBatch(next, uploadExecutor.submit(uploadTask(next))));
+        next = null;
+        continue;
+      }
+
+      InFlightBatch head = inFlight.poll();
+      if (head == null) {
+        break;
+      }
+      List<Message> messages = head.queuedBatch.messages;
+      BatchRejectedException rejection = null;
+      try {
+        head.future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof BatchRejectedException) {
+          // Retrying won't help, so drop the batch rather than holding up the ones behind it.
+          rejection = (BatchRejectedException) cause;
+        } else {
           if (callback != null) {
-            for (Message message : messages) {
-              callback.success(UPLOAD, message);
+          for (Message message : messages) {
+              callback.error(UPLOAD, message, cause);
             }
           }
-        } catch (IOException e) {
-          if (callback != null) {
-            for (Message message : messages) {
-              callback.error(UPLOAD, message, e);
+          // Let the remaining uploads finish before the queue is read again.
+          for (InFlightBatch batch : inFlight) {
+            try {
+              batch.future.get();
+            } catch (ExecutionException ignored) {
             }
           }
-          throw e;
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw (Error) cause;
         }
-        return messages;
       }
-    });
+
+      synchronized (queue) {
+        queue.remove(messages.size());
+      }
+      peekedCount -= messages.size();
+      subtractQueueBytes(head.queuedBatch.messagesSize);
+      if (callback != null) {
+        for (Message message : messages) {
+          if (rejection == null) {
+            callback.success(UPLOAD, message);
+          } else {
+            callback.error(UPLOAD, message, rejection);
+          }
+        }
+      }
+      if (rejection != null) {
+        continue;
+      }
+      // Only whole batches from the start of the flush are returned.
+      returnedBytes += head.queuedBatch.messagesSize;
+      if (returnedBytes <= MAX_RETURNED_BYTES) {
+        if (queueRecords == null) {
+          uploaded.addAll(messages);
+        } else {
+          // Avoid decoding messages unless the caller asks for them.
+          uploadedRecords.addAll(head.queuedBatch.records);
+        }
+      }
+    }
+    return queueRecords == null ? uploaded : new DecodingList(uploadedRecords);
+  }
+
+  private void subtractQueueBytes(long bytes) {
+    while (true) {
+      long current = queueBytes.get();
+      if (queueBytes.compareAndSet(current, Math.max(0, current - bytes))) {
+        return;
+      }
+    }
+  }
+
+  /** Returns a task that uploads the given messages. This is run on the upload executor. */
+  private Callable<Void> uploadTask(final QueuedBatch queuedBatch) {
+    return new Callable<Void>() {
+      @Override public Void call() throws IOException {
+        BatchRequestBody body = new BatchRequestBody(queuedBatch.records, new Date());
+        Response<Void> response = trackingAPI.batch(body).execute();
+        if (!response.isSuccessful()) {
+          String message = "HTTP " + response.code() + ": " + response.message();
+          if (isRejected(response.code())) {
+            throw new BatchRejectedException(message);
+          }
+          throw new IOException(message);
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Returns true if a response with the given status code means the batch will never be accepted,
+   * such as when it is malformed. Timeouts and rate limiting are retried, like server errors.
+   */
+  private static boolean isRejected(int code) {
+    return code >= 400 && code < 500 && code != 408 && code != 429;
+  }
+
+  /**
+   * Returns up to {@code count} batches, starting after the first {@code skip} messages in the
+   * queue and stopping once they take {@code maxBytes}. Each batch holds as many messages as fit
+   * in a single upload, based on the size of each message when encoded, and at least one message.
+   * An empty list is returned if there are no messages left.
+   * <p>
+   * The queue can't be read from an offset, and its iterators fail once it is modified, so the
+   * skipped messages are read again on each call. Reading several batches at once means this
+   * happens once for every {@code count} batches rather than for each one.
+   */
+  @Private List<QueuedBatch> peekBatches(int skip, int count, long maxBytes) throws IOException {
+    List<QueuedBatch> batches = new ArrayList<>();
+    List<byte[]> records = new ArrayList<>();
+    // Only kept for queues that hold decoded messages, the others are decoded when needed.
+    List<Message> messages = new ArrayList<>();
+    long messagesSize = 0;
+    long peekedBytes = 0;
+    Iterator<?> elements = queueRecords == null ? queue.iterator() : queueRecords.iterator();
+    while (elements.hasNext()) {
+      Object element = elements.next();
+      if (skip > 0) {
+        skip--;
+        continue;
+      }
+      byte[] record = toJsonRecord(element);
+      if (!fitsInBatch(records.size(), messagesSize, record)) {
+        batches.add(newQueuedBatch(messages, records, messagesSize));
+        peekedBytes += messagesSize;
+        if (batches.size() == count || peekedBytes >= maxBytes) {
+          return batches;
+        }
+        records = new ArrayList<>();
+        messages = new ArrayList<>();
+        messagesSize = 0;
+      }
+      records.add(record);
+      if (element instanceof Message) {
+        messages.add((Message) element);
+      }
+      messagesSize += record.length;
+    }
+    if (!records.isEmpty()) {
+      batches.add(newQueuedBatch(messages, records, messagesSize));
+    }
+    return batches;
+  }
+
+  /** Returns {@code element}, read from {@link #queue} or {@link #queueRecords}, as JSON. */
+  private byte[] toJsonRecord(Object element) throws IOException {
+    if (element instanceof Message) {
+      return JsonUtils.toByteArray((Message) element);
+    }
+    byte[] record = (byte[]) element;
+    if (!MessageObjectQueueConverter.isJson(record)) {
+      // Stored in the binary format, but uploaded as JSON.
+      record = JsonUtils.toByteArray(converter.from(record));
+    }
+    return record;
+  }
+
+  private QueuedBatch newQueuedBatch(List<Message> messages, List<byte[]> records,
+      long messagesSize) {
+    if (queueRecords != null) {
+      messages = new DecodingList(records);
+    }
+    return new QueuedBatch(messages, records, messagesSize);
+  }
+
+  /**
+   * Returns true if {@code record} can be added to a batch of {@code count} messages taking {@code
+   * messagesSize} bytes.
+   */
+  private static boolean fitsInBatch(int count, long messagesSize, byte[] record) {
+    if (count == 0) {
+      return true;
+    }
+    // Account for the separators between messages.
+    long batchSize = JsonUtils.BATCH_ENVELOPE_SIZE + messagesSize + count + record.length;
+    return batchSize <= JsonUtils.MAX_BATCH_SIZE;
+  }
+
+  /** The parts of a transporter that may be slow to create. */
+  static final class Backend {
+    final ObjectQueue<Message> queue;
+    @Nullable final Iterable<byte[]> queueRecords;
+    final ObjectQueue.Converter<Message> converter;
+    @Nullable final MessageObjectQueueConverter jsonConverter;
+    final TrackingAPI trackingAPI;
+
+    /** Creates a backend whose queue doesn't store messages with a known converter. */
+    Backend(ObjectQueue<Message> queue, @Nullable Iterable<byte[]> queueRecords,
+        TrackingAPI trackingAPI) {
+      this(queue, queueRecords, new MessageObjectQueueConverter(), null, trackingAPI);
+    }
+
+    /** @param converter the converter used by {@code queue}, to read {@code queueRecords}. */
+    Backend(ObjectQueue<Message> queue, @Nullable Iterable<byte[]> queueRecords,
+        ObjectQueue.Converter<Message> converter, TrackingAPI trackingAPI) {
+      this(queue, queueRecords, converter, converter instanceof MessageObjectQueueConverter
+          ? (MessageObjectQueueConverter) converter : null, trackingAPI);
+    }
+
+    private Backend(ObjectQueue<Message> queue, @Nullable Iterable<byte[]> queueRecords,
+        ObjectQueue.Converter<Message> converter,
+        @Nullable MessageObjectQueueConverter jsonConverter, TrackingAPI trackingAPI) {
+      this.queue = queue;
+      this.queueRecords = queueRecords;
+      this.converter = converter;
+      this.jsonConverter = jsonConverter;
+      this.trackingAPI = trackingAPI;
+    }
+
+    /** Returns a Callable that returns the given backend. */
+    static Callable<Backend> immediate(final Backend backend) {
+      return new Callable<Backend>() {
+        @Override public Backend call() {
+          return backend;
+        }
+      };
+    }
+  }
+
+  /** A message waiting to be written to the queue. */
+  static final class PendingWrite<T extends Message> implements Callable<T> {
+    final T message;
+    final ListenableFutureTask<T> future;
+    /** The size of {@link #message} when encoded as JSON. */
+    long size;
+    Exception error;
+
+    PendingWrite(T message) {
+      this.message = message;
+      this.future = new ListenableFutureTask<>(this);
+    }
+
+    @Override public T call() throws Exception {
+      if (error != null) {
+        throw error;
+      }
+      return message;
+    }
+  }
+
+  /** Messages peeked from the queue, along with their encoded size. */
+  static final class QueuedBatch {
+    final List<Message> messages;
+    /** {@link #messages} encoded as JSON. */
+    final List<byte[]> records;
+    final long messagesSize;
+
+    QueuedBatch(List<Message> messages, List<byte[]> records, long messagesSize) {
+      this.messages = messages;
+      this.records = records;
+      this.messagesSize = messagesSize;
+    }
+  }
+
+  /** Messages that are decoded from their JSON records when first accessed. */
+  static final class DecodingList extends AbstractList<Message> {
+    private final List<byte[]> records;
+    private final Message[] messages;
+
+    DecodingList(List<byte[]> records) {
+      this.records = records;
+      this.messages = new Message[records.size()];
+    }
+
+    @Override public Message get(int index) {
+      Message message = messages[index];
+      if (message == null) {
+        try {
+          message = MessageObjectQueueConverter.fromJson(records.get(index));
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to decode message.", e);
+        }
+        messages[index] = message;
+      }
+      return message;
+    }
+
+    @Override public int size() {
+      return records.size();
+    }
+  }
+
+  /** Thrown when the Tracking API rejects a batch, which is then dropped rather than retried. */
+  static final class BatchRejectedException extends IOException {
+    BatchRejectedException(String message) {
+      super(message);
+    }
+  }
+
+  /** A batch that is being uploaded. */
+  static final class InFlightBatch {
+    final QueuedBatch queuedBatch;
+    final Future<Void> future;
+
+    InFlightBatch(QueuedBatch queuedBatch, Future<Void> future) {
+      this.queuedBatch = queuedBatch;
+      this.future = future;
+    }
   }
-}
\ No newline at end of file
+}
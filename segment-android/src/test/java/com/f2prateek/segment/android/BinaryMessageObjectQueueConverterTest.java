@@ -0,0 +1,254 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.AliasMessage;
+import com.f2prateek.segment.model.GroupMessage;
+import com.f2prateek.segment.model.IdentifyMessage;
+import com.f2prateek.segment.model.LayeredMap;
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.ScreenMessage;
+import com.f2prateek.segment.model.TrackMessage;
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class) //
+@Config(constants = BuildConfig.class, sdk = 23) //
+public class BinaryMessageObjectQueueConverterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  BinaryMessageObjectQueueConverter converter = new BinaryMessageObjectQueueConverter();
+
+  @Test public void roundTripsMessages() throws IOException {
+    for (Message message : messages()) {
+      byte[] record = toByteArray(message);
+      assertThat(record[0]).isEqualTo(BinaryMessageObjectQueueConverter.VERSION);
+
+      Message decoded = converter.from(record);
+      assertThat(decoded.type()).isEqualTo(message.type());
+      assertThat(JsonUtils.toByteArray(decoded)).isEqualTo(JsonUtils.toByteArray(message));
+    }
+  }
+
+  @Test public void smallerThanJson() throws IOException {
+    for (Message message : messages()) {
+      assertThat(toByteArray(message).length).isLessThan(JsonUtils.toByteArray(message).length);
+    }
+  }
+
+  @Test public void readsJsonRecords() throws IOException {
+    File file = new File(folder.getRoot(), "segment-queue");
+    QueueFile queueFile = new QueueFile.Builder(file).build();
+    ObjectQueue<Message> json = ObjectQueue.create(queueFile, new MessageObjectQueueConverter());
+    ObjectQueue<Message> binary = ObjectQueue.create(queueFile, converter);
+    List<Message> messages = messages();
+    for (int i = 0; i < messages.size(); i++) {
+      // Alternate the formats to make sure either one can read both.
+      (i % 2 == 0 ? json : binary).add(messages.get(i));
+    }
+
+    for (ObjectQueue<Message> queue : Arrays.asList(json, binary)) {
+      List<Message> read = queue.peek(messages.size());
+      for (int i = 0; i < messages.size(); i++) {
+        assertThat(read.get(i).messageId()).isEqualTo(messages.get(i).messageId());
+        assertThat(read.get(i).type()).isEqualTo(messages.get(i).type());
+      }
+    }
+  }
+
+  @Test public void rejectsUnknownVersion() throws IOException {
+    byte[] record = toByteArray(messages().get(0));
+    record[0] = BinaryMessageObjectQueueConverter.VERSION + 1;
+    try {
+      converter.from(record);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessage("Unsupported record version: 2");
+    }
+  }
+
+  @Test public void rejectsTruncatedRecords() throws IOException {
+    byte[] record = toByteArray(messages().get(0));
+    try {
+      converter.from(Arrays.copyOf(record, record.length - 1));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsNonFiniteNumbers() throws IOException {
+    try {
+      toByteArray(new TrackMessage.Builder().userId("userId")
+          .event("event")
+          .properties(Collections.<String, Object>singletonMap("revenue", Double.NaN))
+          .build());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void keepsFloatAndDecimalNumbers() throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("price", 9.99f);
+    properties.put("total", new BigDecimal("1234567890.123456789012"));
+    properties.put("count", BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE));
+    Message message = new TrackMessage.Builder().userId("userId")
+        .event("event")
+        .properties(properties)
+        .build();
+
+    Message decoded = converter.from(toByteArray(message));
+    String json = new String(JsonUtils.toByteArray(decoded), "UTF-8");
+    assertThat(json).contains("\"price\":9.99")
+        .contains("\"total\":1234567890.123456789012")
+        .contains("\"count\":9223372036854775808");
+    assertThat(JsonUtils.toByteArray(decoded)).isEqualTo(JsonUtils.toByteArray(message));
+  }
+
+  @Test public void storesSharedContextOnce() throws IOException {
+    File directory = new File(folder.getRoot(), "contexts");
+    converter = new BinaryMessageObjectQueueConverter(new ContextDictionary(directory));
+    Map<String, Object> staticContext = new LinkedHashMap<>();
+    staticContext.put("library", Collections.singletonMap("name", "segment-android"));
+    staticContext.put("os", Collections.singletonMap("name", "Android"));
+    staticContext.put("locale", "en-US");
+    LayeredMap<String, Object> deviceContext = LayeredMap.copyOf(staticContext)
+        .plus(Collections.<String, Object>singletonMap("network", "wifi"));
+
+    Message first = new TrackMessage.Builder().event("first")
+        .userId("userId")
+        .context(deviceContext)
+        .build();
+    Message second = new TrackMessage.Builder().event("second")
+        .userId("userId")
+        .context(deviceContext.plus(Collections.<String, Object>singletonMap("locale", "fr-FR")))
+        .build();
+    byte[] firstRecord = toByteArray(first);
+    byte[] secondRecord = toByteArray(second);
+
+    assertThat(directory.list()).hasSize(1);
+    assertThat(firstRecord.length) //
+        .isLessThan(toByteArray(new BinaryMessageObjectQueueConverter(), first).length);
+
+    // Read in a new session.
+    converter = new BinaryMessageObjectQueueConverter(new ContextDictionary(directory));
+    Message firstDecoded = converter.from(firstRecord);
+    Message secondDecoded = converter.from(secondRecord);
+    assertThat(JsonUtils.toByteArray(firstDecoded)).isEqualTo(JsonUtils.toByteArray(first));
+    assertThat(JsonUtils.toByteArray(secondDecoded)).isEqualTo(JsonUtils.toByteArray(second));
+    assertThat(secondDecoded.context()).containsEntry("locale", "fr-FR");
+  }
+
+  @Test public void readsRecordsWithMissingSharedContext() throws IOException {
+    ContextDictionary dictionary = new ContextDictionary(new File(folder.getRoot(), "contexts"));
+    converter = new BinaryMessageObjectQueueConverter(dictionary);
+    Message message = new TrackMessage.Builder().event("event")
+        .userId("userId")
+        .context(LayeredMap.copyOf(Collections.<String, Object>singletonMap("locale", "en-US"))
+            .plus(Collections.<String, Object>singletonMap("network", "wifi")))
+        .build();
+    byte[] record = toByteArray(message);
+    dictionary.clear();
+
+    Message decoded = converter.from(record);
+    assertThat(decoded.context()).containsOnly(entry("network", (Object) "wifi"));
+  }
+
+  @Test public void readsRecordsWithTruncatedSharedContext() throws IOException {
+    File directory = new File(folder.getRoot(), "contexts");
+    converter = new BinaryMessageObjectQueueConverter(new ContextDictionary(directory));
+    LayeredMap<String, Object> context =
+        LayeredMap.copyOf(Collections.<String, Object>singletonMap("locale", "en-US"))
+            .plus(Collections.<String, Object>singletonMap("network", "wifi"));
+    Message message = new TrackMessage.Builder().event("event")
+        .userId("userId")
+        .context(context)
+        .build();
+    byte[] record = toByteArray(message);
+    File file = directory.listFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(file.length() / 2);
+    } finally {
+      raf.close();
+    }
+
+    // Read in a new session.
+    converter = new BinaryMessageObjectQueueConverter(new ContextDictionary(directory));
+    Message decoded = converter.from(record);
+    assertThat(decoded.context()).containsOnly(entry("network", (Object) "wifi"));
+    assertThat(file).doesNotExist();
+
+    // The context is stored again.
+    toByteArray(message);
+    assertThat(converter.from(record).context()).isEqualTo(context);
+  }
+
+  private byte[] toByteArray(Message message) throws IOException {
+    return toByteArray(converter, message);
+  }
+
+  private static byte[] toByteArray(BinaryMessageObjectQueueConverter converter, Message message)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    converter.toStream(message, bytes);
+    return bytes.toByteArray();
+  }
+
+  private static List<Message> messages() {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("revenue", 10.5);
+    properties.put("quantity", -3);
+    properties.put("large", Long.MAX_VALUE);
+    properties.put("discounted", true);
+    properties.put("coupon", null);
+    properties.put("name", "T-Shirt ☃");
+    properties.put("tags", Arrays.<Object>asList("a", 1, false, null));
+    properties.put("nested", Collections.singletonMap("key", "value"));
+    Map<String, Object> context = Collections.<String, Object>singletonMap("locale", "en-US");
+    Map<String, Object> traits = Collections.<String, Object>singletonMap("email", "a@b.com");
+    Date timestamp = new Date(1477958399999L);
+
+    return Arrays.asList( //
+        new AliasMessage.Builder().previousId("previousId")
+            .userId("userId")
+            .timestamp(timestamp)
+            .build(), //
+        new GroupMessage.Builder().groupId("groupId")
+            .traits(traits)
+            .anonymousId("anonymousId")
+            .context(context)
+            .build(), //
+        new IdentifyMessage.Builder().traits(traits).userId("userId").build(), //
+        new ScreenMessage.Builder().name("name")
+            .properties(properties)
+            .userId("userId")
+            .integrations(Collections.<String, Object>singletonMap("All", false))
+            .build(), //
+        new TrackMessage.Builder().event("event")
+            .properties(properties)
+            .userId("userId")
+            .context(context)
+            .timestamp(timestamp)
+            .build());
+  }
+}
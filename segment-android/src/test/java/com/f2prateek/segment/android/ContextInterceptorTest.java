@@ -1,35 +1,39 @@
 package com.f2prateek.segment.android;
 
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.annotation.Nullable;
 import com.f2prateek.segment.model.Message;
 import com.f2prateek.segment.model.TrackMessage;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowNetworkInfo;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
 
 @SuppressWarnings("CheckResult") //
 @RunWith(RobolectricTestRunner.class) //
 @Config(constants = BuildConfig.class, sdk = 23) //
 public class ContextInterceptorTest {
   @SuppressWarnings({ "unchecked", "ConstantConditions" }) @Test public void contextInterceptor() {
-    Interceptor.Chain chain = mock(Interceptor.Chain.class);
-    ArgumentCaptor<Message> argumentCaptor = ArgumentCaptor.forClass(Message.class);
-    when(chain.message()).thenReturn(new TrackMessage.Builder() //
-        .userId("foo").event("event").build());
-    when(chain.proceed(argumentCaptor.capture())).thenReturn(null);
-
     Interceptor interceptor = ContextInterceptor.with(RuntimeEnvironment.application);
-    interceptor.intercept(chain);
+    Message message = intercept(interceptor, new TrackMessage.Builder() //
+        .userId("foo").event("event").build());
 
-    Map<String, Object> context = argumentCaptor.getValue().context();
+    Map<String, Object> context = message.context();
     assertThat(context).hasSize(9);
     assertThat((Map<String, Object>) context.get("app")) //
         .containsEntry("name", "com.f2prateek.segment.android")
@@ -58,13 +62,56 @@ public class ContextInterceptorTest {
     assertThat((String) context.get("locale")).isEqualTo("en-US");
   }
 
-  static class MockChain implements Interceptor.Chain {
-    @Override public Message message() {
-      return null;
-    }
+  @SuppressWarnings({ "unchecked", "ConstantConditions" }) @Test
+  public void refreshesNetworkOnConnectivityChange() {
+    Application application = RuntimeEnvironment.application;
+    Shadows.shadowOf(application).grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE);
+    Shadows.shadowOf(connectivityManager)
+        .setNetworkInfo(ConnectivityManager.TYPE_WIFI,
+            ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.DISCONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, false));
+    Interceptor interceptor = ContextInterceptor.with(application);
+
+    Message message = new TrackMessage.Builder().userId("foo").event("event").build();
+
+    assertThat((Map<String, Object>) intercept(interceptor, message).context().get("network")) //
+        .containsEntry("wifi", false);
+
+    Shadows.shadowOf(connectivityManager)
+        .setNetworkInfo(ConnectivityManager.TYPE_WIFI,
+            ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, true));
+    application.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+
+    assertThat((Map<String, Object>) intercept(interceptor, message).context().get("network")) //
+        .containsEntry("wifi", true);
+  }
+
+  @Test public void keepsMessageContext() {
+    Message message = intercept(ContextInterceptor.with(RuntimeEnvironment.application),
+        new TrackMessage.Builder() //
+            .userId("foo")
+            .event("event")
+            .context(Collections.<String, Object>singletonMap("locale", "fr-FR"))
+            .build());
+
+    Map<String, Object> context = message.context();
+    assertThat(context).hasSize(9).containsEntry("locale", "fr-FR");
+  }
 
-    @Override public Future<Message> proceed(Message message) {
-      return null;
-    }
+  /** Runs the message through the interceptor and returns the message it proceeds with. */
+  private static Message intercept(Interceptor interceptor, Message message) {
+    final AtomicReference<Message> result = new AtomicReference<>();
+    Interceptor capture = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        result.set(chain.message());
+        return null;
+      }
+    };
+    RealInterceptorChain.proceed(message, Arrays.asList(interceptor, capture),
+        mock(Transporter.class));
+    return result.get();
   }
 }
@@ -0,0 +1,78 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.TrackMessage;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ExecutorInterceptorTest {
+  ExecutorService executor;
+  Message message;
+
+  @Before public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    message = new TrackMessage.Builder().userId("foo").event("event").build();
+  }
+
+  @After public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test(expected = NullPointerException.class) public void nullExecutor() {
+    ExecutorInterceptor.with(null);
+  }
+
+  @Test public void proceedsOnExecutor() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Thread> thread = new AtomicReference<>();
+    Interceptor interceptor = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(final Chain chain) {
+        thread.set(Thread.currentThread());
+        ListenableFutureTask<Message> future = new ListenableFutureTask<>(new Callable<Message>() {
+          @Override public Message call() throws Exception {
+            latch.await();
+            return chain.message();
+          }
+        });
+        new Thread(future).start();
+        return future;
+      }
+    };
+
+    Future<Message> future = RealInterceptorChain.proceed(message,
+        Arrays.asList(ExecutorInterceptor.with(executor), interceptor), mock(Transporter.class));
+
+    assertThat(future.isDone()).isFalse();
+    latch.countDown();
+    assertThat(future.get(1, TimeUnit.SECONDS)).isSameAs(message);
+    assertThat(future.isDone()).isTrue();
+    assertThat(thread.get()).isNotSameAs(Thread.currentThread());
+  }
+
+  @Test public void skippedMessage() throws Exception {
+    Interceptor interceptor = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        return null;
+      }
+    };
+
+    Future<Message> future = RealInterceptorChain.proceed(message,
+        Arrays.asList(ExecutorInterceptor.with(executor), interceptor), mock(Transporter.class));
+
+    assertThat(future.get()).isNull();
+    assertThat(future.isDone()).isTrue();
+  }
+}
@@ -0,0 +1,72 @@
+package com.f2prateek.segment.android;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Iso8601UtilsTest {
+  @Test public void format() {
+    assertThat(Iso8601Utils.format(new Date(0))).isEqualTo("1970-01-01T00:00:00.000Z");
+    assertThat(Iso8601Utils.format(new Date(951782400000L))) //
+        .isEqualTo("2000-02-29T00:00:00.000Z");
+    assertThat(Iso8601Utils.format(new Date(1477958399999L))) //
+        .isEqualTo("2016-10-31T23:59:59.999Z");
+    assertThat(Iso8601Utils.format(new Date(253402300799999L))) //
+        .isEqualTo("9999-12-31T23:59:59.999Z");
+    assertThat(Iso8601Utils.format(new Date(-1))).isEqualTo("1969-12-31T23:59:59.999Z");
+  }
+
+  @Test public void formatMatchesSimpleDateFormat() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      Date date = new Date((long) (random.nextDouble() * 253402300800000L));
+      assertThat(Iso8601Utils.format(date)).isEqualTo(dateFormat.format(date));
+    }
+  }
+
+  @Test public void formatToSink() throws IOException {
+    Buffer buffer = new Buffer().writeUtf8("\"");
+    Iso8601Utils.format(new Date(1477958399999L), buffer);
+    assertThat(buffer.size()).isEqualTo(25);
+    Iso8601Utils.format(new Date(-1), buffer.writeUtf8("\",\""));
+    assertThat(buffer.writeUtf8("\"").readUtf8()) //
+        .isEqualTo("\"2016-10-31T23:59:59.999Z\",\"1969-12-31T23:59:59.999Z\"");
+  }
+
+  @Test public void parse() {
+    assertThat(Iso8601Utils.parse("1970-01-01T00:00:00.000Z")).isEqualTo(new Date(0));
+    assertThat(Iso8601Utils.parse("2000-02-29T00:00:00.000Z")).isEqualTo(new Date(951782400000L));
+    assertThat(Iso8601Utils.parse("9999-12-31T23:59:59.999Z")) //
+        .isEqualTo(new Date(253402300799999L));
+    assertThat(Iso8601Utils.parse("1969-12-31T23:59:59.999Z")).isEqualTo(new Date(-1));
+  }
+
+  @Test public void parseOtherForms() {
+    Date date = new Date(1477958399000L);
+    assertThat(Iso8601Utils.parse("2016-10-31T23:59:59Z")).isEqualTo(date);
+    assertThat(Iso8601Utils.parse("2016-10-31T23:59:59.000+00:00")).isEqualTo(date);
+    assertThat(Iso8601Utils.parse("2016-10-31T16:59:59.000-07:00")).isEqualTo(date);
+    assertThat(Iso8601Utils.parse("2016-10-31T23:59:60.000Z")).isEqualTo(date);
+  }
+
+  @Test(expected = AssertionError.class) public void parseInvalidDate() {
+    Iso8601Utils.parse("2015-02-29T00:00:00.000Z");
+  }
+
+  @Test public void parseFormatted() {
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      Date date = new Date((long) (random.nextDouble() * 253402300800000L));
+      assertThat(Iso8601Utils.parse(Iso8601Utils.format(date))).isEqualTo(date);
+    }
+  }
+}
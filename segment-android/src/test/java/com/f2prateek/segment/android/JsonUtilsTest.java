@@ -0,0 +1,187 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.AliasMessage;
+import com.f2prateek.segment.model.GroupMessage;
+import com.f2prateek.segment.model.IdentifyMessage;
+import com.f2prateek.segment.model.LazyMap;
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.ScreenMessage;
+import com.f2prateek.segment.model.TrackMessage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.junit.Assert.fail;
+
+public class JsonUtilsTest {
+  @Test public void toJson() throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("revenue", 10.5);
+    properties.put("quantity", -3);
+    properties.put("large", Long.MAX_VALUE);
+    properties.put("discounted", true);
+    properties.put("coupon", null);
+    properties.put("tags", Arrays.<Object>asList("a", 1, false, null));
+    properties.put("nested", Collections.singletonMap("key", "value"));
+    Message message = new TrackMessage.Builder().messageId("messageId")
+        .timestamp(new Date(1477958399999L))
+        .userId("userId")
+        .event("Purchased Item")
+        .properties(properties)
+        .build();
+
+    assertThat(json(message)).isEqualTo("{\"type\":\"track\",\"messageId\":\"messageId\","
+        + "\"timestamp\":\"2016-10-31T23:59:59.999Z\",\"integrations\":{},\"userId\":\"userId\","
+        + "\"event\":\"Purchased Item\",\"properties\":{\"revenue\":10.5,\"quantity\":-3,"
+        + "\"large\":9223372036854775807,\"discounted\":true,\"coupon\":null,"
+        + "\"tags\":[\"a\",1,false,null],\"nested\":{\"key\":\"value\"}}}");
+    assertThat(JsonUtils.sizeOf(message)).isEqualTo(JsonUtils.toByteArray(message).length);
+  }
+
+  @Test public void escapesStrings() throws IOException {
+    Message message = new AliasMessage.Builder().previousId("previousId")
+        .userId("\"quoted\" \\ \t\b\n\r\f \u0001 / ☃ \u2028")
+        .build();
+
+    assertThat(json(message)).contains("\"userId\":"
+        + "\"\\\"quoted\\\" \\\\ \\t\\b\\n\\r\\f \\u0001 / ☃ \\u2028\"");
+  }
+
+  @Test public void rejectsNonFiniteNumbers() throws IOException {
+    for (Object value : Arrays.<Object>asList(Double.NaN, Double.POSITIVE_INFINITY,
+        Float.NEGATIVE_INFINITY)) {
+      try {
+        JsonUtils.toByteArray(new TrackMessage.Builder().userId("userId")
+            .event("event")
+            .properties(Collections.singletonMap("revenue", value))
+            .build());
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test public void roundTripsMessages() throws IOException {
+    Map<String, Object> traits = new LinkedHashMap<>();
+    traits.put("email", "a@b.com");
+    traits.put("name", "Bücher \uD83D\uDCDA \"quoted\"");
+    traits.put("age", 3.0);
+    traits.put("tags", Arrays.<Object>asList("a", true, null, Collections.emptyMap()));
+    Map<String, Object> context = Collections.<String, Object>singletonMap("locale", "en-US");
+
+    for (Message message : Arrays.asList( //
+        new AliasMessage.Builder().previousId("previousId").userId("userId").build(),
+        new GroupMessage.Builder().groupId("groupId").anonymousId("a").traits(traits).build(),
+        new IdentifyMessage.Builder().userId("userId").context(context).traits(traits).build(),
+        new ScreenMessage.Builder().name("Home").userId("userId").properties(traits).build(),
+        new TrackMessage.Builder().event("event").userId("userId").properties(traits).build())) {
+      Message decoded = JsonUtils.fromJson(new Buffer().write(JsonUtils.toByteArray(message)));
+      assertThat(decoded.type()).isEqualTo(message.type());
+      assertThat(JsonUtils.toByteArray(decoded)).isEqualTo(JsonUtils.toByteArray(message));
+    }
+  }
+
+  @Test public void fromJson() throws IOException {
+    String json = "{\n"
+        + "  \"version\": 2,\n"
+        + "  \"type\": \"track\",\n"
+        + "  \"messageId\": \"messageId\",\n"
+        + "  \"anonymousId\": null,\n"
+        + "  \"unknown\": {\"a\": [1, \"\\u0062\", {}]},\n"
+        + "  \"userId\": \"\\u00fcser\\nId\",\n"
+        + "  \"event\": \"event\",\n"
+        + "  \"properties\": {\"revenue\": -1.5e2, \"items\": [], \"ok\": false}\n"
+        + "}";
+
+    TrackMessage message = (TrackMessage) JsonUtils.fromJson(new Buffer().writeUtf8(json));
+
+    assertThat(message.messageId()).isEqualTo("messageId");
+    assertThat(message.anonymousId()).isNull();
+    assertThat(message.userId()).isEqualTo("üser\nId");
+    assertThat(message.event()).isEqualTo("event");
+    assertThat(message.properties()).containsExactly(entry("revenue", -150.0),
+        entry("items", Collections.emptyList()), entry("ok", false));
+  }
+
+  @SuppressWarnings("unchecked") @Test public void decodesMapsLazily() throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put("revenue", 10.5);
+    properties.put("tags", Arrays.<Object>asList("a \"quoted\" ]}", Collections.emptyMap()));
+    byte[] json = JsonUtils.toByteArray(new TrackMessage.Builder().event("event")
+        .userId("userId")
+        .context(Collections.<String, Object>singletonMap("locale", "en-US"))
+        .properties(properties)
+        .build());
+
+    TrackMessage message = (TrackMessage) JsonUtils.fromJson(new Buffer().write(json));
+    LazyMap<String, Object> context = (LazyMap<String, Object>) message.context();
+    LazyMap<String, Object> decoded = (LazyMap<String, Object>) message.properties();
+    assertThat(message.event()).isEqualTo("event");
+    assertThat(JsonUtils.toByteArray(message)).isEqualTo(json);
+    assertThat(context.isLoaded()).isFalse();
+    assertThat(decoded.isLoaded()).isFalse();
+
+    assertThat(decoded).isEqualTo(properties);
+    assertThat(decoded.isLoaded()).isTrue();
+    assertThat(context.isLoaded()).isFalse();
+  }
+
+  @Test public void emptyMapsAreNotKept() throws IOException {
+    TrackMessage message = (TrackMessage) JsonUtils.fromJson(new Buffer().writeUtf8(
+        "{\"type\":\"track\",\"userId\":\"userId\",\"event\":\"event\",\"properties\":{}}"));
+
+    assertThat(message.context()).isNull();
+    assertThat(message.properties()).isEmpty();
+    assertThat(message.properties()).isNotInstanceOf(LazyMap.class);
+  }
+
+  @Test public void malformedMapsFailWhenRead() throws IOException {
+    TrackMessage message = (TrackMessage) JsonUtils.fromJson(new Buffer().writeUtf8(
+        "{\"type\":\"track\",\"userId\":\"userId\",\"event\":\"event\","
+            + "\"properties\":{\"a\":tru}}"));
+
+    try {
+      message.properties().get("a");
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void rejectsTruncatedJson() throws IOException {
+    byte[] json = JsonUtils.toByteArray(new TrackMessage.Builder().event("event") //
+        .userId("userId")
+        .build());
+    for (int length = 0; length < json.length; length++) {
+      try {
+        JsonUtils.fromJson(new Buffer().write(json, 0, length));
+        fail();
+      } catch (EOFException expected) {
+      }
+    }
+  }
+
+  @Test public void rejectsMalformedJson() throws IOException {
+    for (String json : Arrays.asList("[]", "{\"type\":\"track\";}", "{\"type\":tru}",
+        "{\"type\":\"\\x\"}")) {
+      try {
+        JsonUtils.fromJson(new Buffer().writeUtf8(json));
+        fail(json);
+      } catch (EOFException e) {
+        fail(json);
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  private static String json(Message message) throws IOException {
+    return new String(JsonUtils.toByteArray(message), "UTF-8");
+  }
+}
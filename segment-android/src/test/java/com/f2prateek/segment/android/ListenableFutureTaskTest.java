@@ -0,0 +1,92 @@
+package com.f2prateek.segment.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.f2prateek.segment.android.ListenableFutureTask.DIRECT_EXECUTOR;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ListenableFutureTaskTest {
+  ListenableFutureTask<String> task;
+  List<String> events;
+
+  @Before public void setUp() {
+    events = new ArrayList<>();
+    task = new ListenableFutureTask<>(new Callable<String>() {
+      @Override public String call() {
+        events.add("call");
+        return "result";
+      }
+    });
+  }
+
+  @Test public void runsListenersOnceCompleted() throws Exception {
+    task.addListener(record("listener"), DIRECT_EXECUTOR);
+    assertThat(events).isEmpty();
+
+    task.run();
+    assertThat(events).containsExactly("call", "listener");
+    assertThat(task.get()).isEqualTo("result");
+  }
+
+  @Test public void runsListenersAddedAfterCompletion() {
+    task.run();
+    task.addListener(record("listener"), DIRECT_EXECUTOR);
+
+    assertThat(events).containsExactly("call", "listener");
+  }
+
+  @Test public void runsListenersWhenCancelled() {
+    task.addListener(record("listener"), DIRECT_EXECUTOR);
+    task.cancel(false);
+
+    assertThat(events).containsExactly("listener");
+  }
+
+  @Test public void runsListenersOnExecutor() {
+    final List<Runnable> executed = new ArrayList<>();
+    task.addListener(record("listener"), new Executor() {
+      @Override public void execute(Runnable command) {
+        executed.add(command);
+      }
+    });
+
+    task.run();
+    assertThat(events).containsExactly("call");
+    assertThat(executed).hasSize(1);
+    executed.get(0).run();
+    assertThat(events).containsExactly("call", "listener");
+  }
+
+  @Test public void failingExecutorDoesNotStopOtherListeners() {
+    task.addListener(record("first"), new Executor() {
+      @Override public void execute(Runnable command) {
+        throw new IllegalStateException();
+      }
+    });
+    task.addListener(record("second"), DIRECT_EXECUTOR);
+
+    task.run();
+    assertThat(events).containsExactly("call", "second");
+  }
+
+  @Test(expected = NullPointerException.class) public void nullListener() {
+    task.addListener(null, DIRECT_EXECUTOR);
+  }
+
+  @Test(expected = NullPointerException.class) public void nullExecutor() {
+    task.addListener(record("listener"), null);
+  }
+
+  private Runnable record(final String event) {
+    return new Runnable() {
+      @Override public void run() {
+        events.add(event);
+      }
+    };
+  }
+}
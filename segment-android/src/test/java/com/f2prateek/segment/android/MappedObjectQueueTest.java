@@ -0,0 +1,202 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.TrackMessage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MappedObjectQueueTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  File file;
+  MappedObjectQueue queue;
+
+  @Before public void setUp() throws IOException {
+    file = new File(folder.getRoot(), "queue");
+    queue = new MappedObjectQueue.Builder(file).build();
+  }
+
+  @After public void tearDown() throws IOException {
+    queue.close();
+  }
+
+  @Test public void addPeekAndRemove() throws IOException {
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.peek()).isNull();
+
+    List<Message> messages = messages(3, "event");
+    for (Message message : messages) {
+      queue.add(message);
+    }
+
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(queue.peek().messageId()).isEqualTo(messages.get(0).messageId());
+    assertThat(messageIds(queue.peek(3))).isEqualTo(messageIds(messages));
+
+    queue.remove(2);
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.peek().messageId()).isEqualTo(messages.get(2).messageId());
+
+    queue.remove(1);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.peek()).isNull();
+  }
+
+  @Test public void recordsAreJson() throws IOException {
+    List<Message> messages = messages(2, "event");
+    for (Message message : messages) {
+      queue.add(message);
+    }
+
+    List<byte[]> records = new ArrayList<>();
+    for (byte[] record : queue.records()) {
+      records.add(record);
+    }
+    assertThat(records).hasSize(2);
+    for (int i = 0; i < 2; i++) {
+      assertThat(records.get(i)).isEqualTo(JsonUtils.toByteArray(messages.get(i)));
+    }
+  }
+
+  @Test public void persistsAcrossInstances() throws IOException {
+    List<Message> messages = messages(3, "event");
+    for (Message message : messages) {
+      queue.add(message);
+    }
+    queue.remove(1);
+    queue.close();
+
+    queue = new MappedObjectQueue.Builder(file).sync(MappedObjectQueue.Sync.NEVER).build();
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(messageIds(queue.peek(2))).isEqualTo(messageIds(messages.subList(1, 3)));
+  }
+
+  @Test public void growsAndReusesSpace() throws IOException {
+    String event = new String(new char[1000]).replace('\0', 'a');
+    List<Message> messages = messages(50, event);
+    long recordLength = JsonUtils.sizeOf(messages.get(0));
+    // Keep a few messages queued while the rest go around the file many times.
+    long length = 0;
+    for (int round = 0; round < 20; round++) {
+      for (Message message : messages) {
+        queue.add(message);
+      }
+      queue.remove(round == 0 ? 45 : 50);
+      assertThat(queue.size()).isEqualTo(5);
+      if (round == 10) {
+        length = file.length();
+      }
+    }
+
+    // The file grew to fit the messages queued at once, and then stopped growing.
+    assertThat(file.length()).isEqualTo(length);
+    assertThat(length).isLessThanOrEqualTo(4 * 55 * (4 + recordLength));
+    assertThat(messageIds(queue.peek(5))).isEqualTo(messageIds(messages.subList(45, 50)));
+    queue.close();
+    queue = new MappedObjectQueue.Builder(file).build();
+    assertThat(queue.size()).isEqualTo(5);
+  }
+
+  @Test public void removingTooManyThrows() throws IOException {
+    queue.add(messages(1, "event").get(0));
+    try {
+      queue.remove(2);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      queue.remove(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test public void iteratorDetectsChanges() throws IOException {
+    queue.add(messages(1, "event").get(0));
+    Iterator<Message> iterator = queue.iterator();
+    queue.add(messages(1, "event").get(0));
+    try {
+      iterator.next();
+      fail();
+    } catch (ConcurrentModificationException expected) {
+    }
+  }
+
+  @Test public void rejectsOtherFiles() throws IOException {
+    File other = folder.newFile("other");
+    FileOutputStream out = new FileOutputStream(other);
+    try {
+      out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+    } finally {
+      out.close();
+    }
+
+    try {
+      new MappedObjectQueue.Builder(other).build();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsCorruptFiles() throws IOException {
+    queue.add(messages(1, "event").get(0));
+    queue.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(16);
+      raf.writeInt(Integer.MAX_VALUE); // The length of the first record.
+    } finally {
+      raf.close();
+    }
+
+    try {
+      queue = new MappedObjectQueue.Builder(file).build();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsLargeMessages() throws IOException {
+    String event = new String(new char[JsonUtils.MAX_MESSAGE_SIZE]).replace('\0', 'a');
+    try {
+      queue.add(messages(1, event).get(0));
+      fail();
+    } catch (JsonUtils.MessageTooLargeException expected) {
+    }
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  private static List<Message> messages(int count, String event) {
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      messages.add(new TrackMessage.Builder().userId("userId")
+          .event(event)
+          .properties(Collections.<String, Object>singletonMap("index", i))
+          .build());
+    }
+    return messages;
+  }
+
+  private static List<String> messageIds(List<Message> messages) {
+    List<String> messageIds = new ArrayList<>();
+    for (Message message : messages) {
+      messageIds.add(message.messageId());
+    }
+    return messageIds;
+  }
+}
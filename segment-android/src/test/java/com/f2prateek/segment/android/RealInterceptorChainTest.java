@@ -0,0 +1,161 @@
+package com.f2prateek.segment.android;
+
+import android.support.annotation.Nullable;
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.TrackMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class RealInterceptorChainTest {
+  Transporter transporter;
+  Message message;
+
+  @Before public void setUp() {
+    transporter = mock(Transporter.class);
+    message = new TrackMessage.Builder().userId("foo").event("event").build();
+  }
+
+  @Test public void transportsMessageWithoutInterceptors() {
+    RealInterceptorChain.proceed(message, Collections.<Interceptor>emptyList(), transporter);
+
+    verify(transporter).enqueue(message);
+  }
+
+  @Test public void transportsUneditedMessage() {
+    Interceptor interceptor = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        return chain.proceed();
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Arrays.asList(interceptor, interceptor), transporter);
+
+    verify(transporter).enqueue(message);
+  }
+
+  @Test public void buildsEditsFromAllInterceptors() {
+    Interceptor userId = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        chain.edit().userId("bar");
+        return chain.proceed();
+      }
+    };
+    Interceptor anonymousId = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        chain.edit().anonymousId("qaz");
+        return chain.proceed();
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Arrays.asList(userId, anonymousId), transporter);
+
+    Message transported = transported();
+    assertThat(transported.userId()).isEqualTo("bar");
+    assertThat(transported.anonymousId()).isEqualTo("qaz");
+    assertThat(transported.messageId()).isEqualTo(message.messageId());
+  }
+
+  @Test public void messageIncludesEdits() {
+    Interceptor edit = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        chain.edit().userId("bar");
+        return chain.proceed();
+      }
+    };
+    Interceptor read = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        assertThat(chain.message().userId()).isEqualTo("bar");
+        return chain.proceed(chain.message());
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Arrays.asList(edit, read), transporter);
+
+    assertThat(transported().userId()).isEqualTo("bar");
+  }
+
+  @Test public void editingInterceptorsBuildOnce() {
+    final List<Message.Builder<?, ?>> builders = new ArrayList<>();
+    Interceptor library = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        Message.Builder<?, ?> builder = chain.edit();
+        builders.add(builder);
+        builder.context(Collections.<String, Object>singletonMap("library", "segment"));
+        return chain.proceed();
+      }
+    };
+    Interceptor locale = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        Message.Builder<?, ?> builder = chain.edit();
+        builders.add(builder);
+        Map<String, Object> context = new LinkedHashMap<>(builder.context());
+        context.put("locale", "en-US");
+        builder.context(context);
+        return chain.proceed();
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Arrays.asList(library, locale), transporter);
+
+    // Reading the message would have built it, and a second builder would have been created.
+    assertThat(builders).hasSize(2);
+    assertThat(builders.get(1)).isSameAs(builders.get(0));
+    assertThat(transported().context()).containsEntry("library", "segment")
+        .containsEntry("locale", "en-US");
+  }
+
+  @Test public void messageCannotBeReadAfterProceeding() {
+    Interceptor interceptor = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        ListenableFuture<Message> future = chain.proceed();
+        try {
+          chain.message();
+          fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+          chain.edit();
+          fail();
+        } catch (IllegalStateException expected) {
+        }
+        return future;
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Collections.singletonList(interceptor), transporter);
+
+    verify(transporter).enqueue(message);
+  }
+
+  @Test public void replacingMessageDiscardsEdits() {
+    final Message replacement = new TrackMessage.Builder().userId("qaz").event("event").build();
+    Interceptor interceptor = new Interceptor() {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
+        chain.edit().userId("bar");
+        return chain.proceed(replacement);
+      }
+    };
+
+    RealInterceptorChain.proceed(message, Collections.singletonList(interceptor), transporter);
+
+    verify(transporter).enqueue(replacement);
+  }
+
+  private Message transported() {
+    ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+    verify(transporter).enqueue(captor.capture());
+    return captor.getValue();
+  }
+}
@@ -2,6 +2,7 @@ package com.f2prateek.segment.android;
 
 import android.Manifest;
 import android.app.Application;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -58,6 +59,34 @@ public class SegmentBuilderTest {
     new Segment.Builder().callback(null);
   }
 
+  @Test(expected = IllegalArgumentException.class) public void invalidFlushQueueSize() {
+    new Segment.Builder().flushQueueSize(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidFlushQueueBytes() {
+    new Segment.Builder().flushQueueBytes(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidFlushInterval() {
+    new Segment.Builder().flushInterval(-1, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidMaxFlushBytes() {
+    new Segment.Builder().maxFlushBytes(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidMaxFlushDuration() {
+    new Segment.Builder().maxFlushDuration(0, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidMaxConcurrentUploads() {
+    new Segment.Builder().maxConcurrentUploads(0);
+  }
+
+  @Test(expected = NullPointerException.class) public void nullMessageIdGenerator() {
+    new Segment.Builder().messageIdGenerator(null);
+  }
+
   @Test public void builderWithDefaults() {
     grantPermission(RuntimeEnvironment.application, Manifest.permission.INTERNET);
     new Segment.Builder().context(RuntimeEnvironment.application).writeKey("foo").build();
@@ -6,15 +6,17 @@ import android.app.Application;
 import android.os.Build;
 import android.support.annotation.Nullable;
 import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.MessageIdGenerator;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.Future;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -46,7 +48,7 @@ public class SegmentTest {
 
   @Test public void interceptors() throws Exception {
     Interceptor interceptor = Mockito.spy(new Interceptor() {
-      @Nullable @Override public Future<Message> intercept(Chain chain) {
+      @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
         return chain.proceed(chain.message());
       }
     });
@@ -106,13 +108,88 @@ public class SegmentTest {
     }
   }
 
+  @Test public void asyncInitialization() throws Exception {
+    Segment segment = new Segment.Builder() //
+        .writeKey("writeKey") //
+        .context(RuntimeEnvironment.application) //
+        .baseUrl(server.url("/")) //
+        .asyncInitialization(true) //
+        .build();
+
+    Message m = segment.newTrack("event").build();
+    server.enqueue(new MockResponse());
+
+    //noinspection ConstantConditions
+    segment.enqueue(m).get();
+    segment.flush().get();
+
+    RecordedRequest request = server.takeRequest();
+    assertThat(request.getBody().readUtf8()).contains(m.messageId());
+  }
+
+  @Test public void messageIdGenerator() {
+    Segment segment = new Segment.Builder() //
+        .writeKey("writeKey") //
+        .context(RuntimeEnvironment.application) //
+        .messageIdGenerator(new MessageIdGenerator() {
+          @Override public String generate() {
+            return "foo";
+          }
+        }) //
+        .build();
+
+    assertThat(segment.newTrack("event").build().messageId()).isEqualTo("foo");
+  }
+
+  @Test public void gzip() throws Exception {
+    Segment segment = new Segment.Builder() //
+        .writeKey("writeKey") //
+        .context(RuntimeEnvironment.application) //
+        .baseUrl(server.url("/")) //
+        .gzip(true) //
+        .build();
+
+    Message m = segment.newTrack("event").build();
+    server.enqueue(new MockResponse());
+
+    //noinspection ConstantConditions
+    segment.enqueue(m).get();
+    segment.flush().get();
+
+    RecordedRequest request = server.takeRequest();
+    assertThat(request.getHeader("Content-Encoding")).isEqualTo("gzip");
+    Buffer body = new Buffer();
+    body.writeAll(new GzipSource(request.getBody()));
+    assertThat(body.readUtf8()).contains(m.messageId());
+  }
+
+  @Test public void binaryQueue() throws Exception {
+    Segment segment = new Segment.Builder() //
+        .writeKey("binaryQueue") //
+        .context(RuntimeEnvironment.application) //
+        .baseUrl(server.url("/")) //
+        .interceptor(ContextInterceptor.with(RuntimeEnvironment.application)) //
+        .binaryQueue(true) //
+        .build();
+
+    Message m = segment.newTrack("event").build();
+    server.enqueue(new MockResponse());
+
+    //noinspection ConstantConditions
+    segment.enqueue(m).get();
+    segment.flush().get();
+
+    String body = server.takeRequest().getBody().readUtf8();
+    assertThat(body).contains(m.messageId()).contains("\"library\":{\"name\":\"segment-android\"");
+  }
+
   @TargetApi(Build.VERSION_CODES.LOLLIPOP) @Test public void logout() throws Exception {
     final Queue<Message> messageQueue = new ConcurrentLinkedDeque<>();
     Segment segment = new Segment.Builder() //
         .writeKey("writeKey") //
         .context(RuntimeEnvironment.application) //
         .interceptor(new Interceptor() {
-          @Nullable @Override public Future<Message> intercept(Chain chain) {
+          @Nullable @Override public ListenableFuture<Message> intercept(Chain chain) {
             Message message = chain.message();
             messageQueue.add(message);
             return chain.proceed(message);
@@ -36,4 +36,13 @@ public class StringCacheTest {
     assertThat(sharedPreferences).doesNotHaveKey("foo");
     assertThat(stringCache.get()).isEqualTo(null);
   }
+
+  @Test public void readsPreferencesOnce() {
+    sharedPreferences.edit().putString("bar", "baz").apply();
+    StringCache cache = new StringCache(sharedPreferences, "bar");
+    assertThat(cache.get()).isEqualTo("baz");
+
+    sharedPreferences.edit().putString("bar", "qux").apply();
+    assertThat(cache.get()).isEqualTo("baz");
+  }
 }
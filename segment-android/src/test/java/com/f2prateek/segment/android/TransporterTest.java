@@ -1,18 +1,37 @@
 package com.f2prateek.segment.android;
 
-import com.f2prateek.segment.model.Batch;
 import com.f2prateek.segment.model.Message;
 import com.f2prateek.segment.model.TrackMessage;
 import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import retrofit2.Call;
@@ -20,14 +39,20 @@ import retrofit2.Response;
 import retrofit2.mock.Calls;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 @RunWith(RobolectricTestRunner.class) //
 @Config(constants = BuildConfig.class, sdk = 23) //
 public class TransporterTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
   @Mock TrackingAPI trackingAPI;
   @Mock Callback callback;
   ObjectQueue<Message> queue;
@@ -36,7 +61,13 @@ public class TransporterTest {
   @Before public void setUp() {
     MockitoAnnotations.initMocks(this);
     queue = ObjectQueue.createInMemory();
-    transporter = new Transporter(queue, trackingAPI, callback);
+    transporter = newTransporter(callback);
+  }
+
+  private Transporter newTransporter(Callback callback) {
+    // Disable automatic flushes.
+    return new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
   }
 
   @Test public void invokesCallback() throws ExecutionException, InterruptedException {
@@ -46,15 +77,51 @@ public class TransporterTest {
     verify(callback).success(Callback.Event.PERSIST, message);
 
     Call<Void> call = Calls.response(Response.success((Void) null));
-    when(trackingAPI.batch(any(Batch.class))).thenReturn(call);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
     transporter.flush().get();
     verify(callback).success(Callback.Event.UPLOAD, message);
   }
 
+  @Test public void flushUploadsEarlierMessages() throws Exception {
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+
+    transporter.enqueue(message);
+    List<Message> uploaded = transporter.flush().get(5, TimeUnit.SECONDS);
+
+    assertThat(uploaded).hasSize(1);
+    assertThat(uploaded.get(0).messageId()).isEqualTo(message.messageId());
+    verify(trackingAPI).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void notifiesListeners() throws Exception {
+    final CountDownLatch enqueued = new CountDownLatch(1);
+    final CountDownLatch flushed = new CountDownLatch(1);
+    Runnable countDown = new Runnable() {
+      @Override public void run() {
+        enqueued.countDown();
+      }
+    };
+    when(trackingAPI.batch(any(BatchRequestBody.class))) //
+        .thenReturn(Calls.response(Response.success((Void) null)));
+
+    transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build())
+        .addListener(countDown, ListenableFutureTask.DIRECT_EXECUTOR);
+    assertThat(enqueued.await(5, TimeUnit.SECONDS)).isTrue();
+    transporter.flush().addListener(new Runnable() {
+      @Override public void run() {
+        flushed.countDown();
+      }
+    }, ListenableFutureTask.DIRECT_EXECUTOR);
+    assertThat(flushed.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
   @Test public void invokesPersistErrorCallback() throws Exception {
     //noinspection unchecked
     queue = mock(ObjectQueue.class);
-    transporter = new Transporter(queue, trackingAPI, callback);
+    transporter = newTransporter(callback);
 
     Message message = new TrackMessage.Builder().userId("userId").event("event").build();
     IOException testException = new IOException("test");
@@ -70,13 +137,13 @@ public class TransporterTest {
   }
 
   @Test public void invokesUploadErrorCallback() throws Exception {
-    transporter = new Transporter(queue, trackingAPI, callback);
+    transporter = newTransporter(callback);
 
     Message message = new TrackMessage.Builder().userId("userId").event("event").build();
     IOException testException = new IOException("test");
 
     Call<Void> call = Calls.failure(testException);
-    when(trackingAPI.batch(any(Batch.class))).thenReturn(call);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
 
     transporter.enqueue(message).get();
 
@@ -89,30 +156,559 @@ public class TransporterTest {
   }
 
   @Test public void ignoresNullCallback() throws ExecutionException, InterruptedException {
-    transporter = new Transporter(queue, trackingAPI, null);
+    transporter = newTransporter(null);
 
     Message message = new TrackMessage.Builder().userId("userId").event("event").build();
 
     transporter.enqueue(message).get();
 
     Call<Void> call = Calls.response(Response.success((Void) null));
-    when(trackingAPI.batch(any(Batch.class))).thenReturn(call);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
     transporter.flush().get();
   }
 
   @Test public void trimsBatches() throws Exception {
+    enqueueLargeMessages(200);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    assertThat(transporter.flush().get()).hasSize(200);
+
+    ArgumentCaptor<BatchRequestBody> batchArgumentCaptor =
+        ArgumentCaptor.forClass(BatchRequestBody.class);
+    verify(trackingAPI, times(2)).batch(batchArgumentCaptor.capture());
+
+    List<BatchRequestBody> batches = batchArgumentCaptor.getAllValues();
+    assertThat(batches.get(0).records).hasSize(125);
+    assertThat(batches.get(1).records).hasSize(75);
+    assertThat(queue.size()).isEqualTo(0);
+    for (BatchRequestBody batch : batches) {
+      Buffer buffer = new Buffer();
+      batch.writeTo(buffer);
+      assertThat(batch.contentLength()).isEqualTo(buffer.size())
+          .isLessThanOrEqualTo(JsonUtils.MAX_BATCH_SIZE);
+    }
+  }
+
+  @Test public void stopsFlushingAfterMaxFlushBytes() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, 1, Long.MAX_VALUE, 1);
+    enqueueLargeMessages(200);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    assertThat(transporter.flush().get()).hasSize(125);
+    verify(trackingAPI).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(75);
+  }
+
+  @Test public void returnsFirstUploadedMessages() throws Exception {
+    enqueueLargeMessages(700);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    // Every batch is uploaded, but only the first four are returned.
+    assertThat(transporter.flush().get()).hasSize(500);
+    verify(trackingAPI, times(6)).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void retainsMessagesOnHttpError() throws Exception {
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    transporter.enqueue(message).get();
+
+    Call<Void> call = Calls.response(Response.<Void>error(500,
+        ResponseBody.create(MediaType.parse("application/json"), "{}")));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    try {
+      transporter.flush().get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+    }
+    verify(callback).error(eq(Callback.Event.UPLOAD), eq(message), any(IOException.class));
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test public void dropsRejectedBatches() throws Exception {
+    enqueueLargeMessages(200);
+    Message rejected = queue.peek();
+
+    Call<Void> rejection = Calls.response(Response.<Void>error(400,
+        ResponseBody.create(MediaType.parse("application/json"), "{}")));
+    Call<Void> success = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(rejection, success);
+
+    // The batch after the rejected one is still uploaded.
+    assertThat(transporter.flush().get()).hasSize(75);
+    verify(trackingAPI, times(2)).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(0);
+    verify(callback).error(eq(Callback.Event.UPLOAD), eq(rejected),
+        any(Transporter.BatchRejectedException.class));
+  }
+
+  @Test public void retriesRateLimitedBatches() throws Exception {
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    transporter.enqueue(message).get();
+
+    Call<Void> call = Calls.response(Response.<Void>error(429,
+        ResponseBody.create(MediaType.parse("application/json"), "{}")));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    try {
+      transporter.flush().get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isNotInstanceOf(Transporter.BatchRejectedException.class);
+    }
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test public void uploadsBatchesConcurrently() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 2);
+    enqueueLargeMessages(200);
+
+    // Each upload waits until both batches are in flight.
+    final CountDownLatch latch = new CountDownLatch(2);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenAnswer(new Answer<Call<Void>>() {
+      @Override public Call<Void> answer(InvocationOnMock invocation) throws Throwable {
+        latch.countDown();
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        return Calls.response(Response.success((Void) null));
+      }
+    });
+
+    assertThat(transporter.flush().get()).hasSize(200);
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void readsAheadOfBatchesInFlight() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "queue");
+    final QueueFile queueFile = new QueueFile.Builder(file).build();
+    queue = ObjectQueue.create(queueFile, new MessageObjectQueueConverter());
+    final AtomicInteger reads = new AtomicInteger();
+    Iterable<byte[]> records = new Iterable<byte[]>() {
+      @Override public Iterator<byte[]> iterator() {
+        final Iterator<byte[]> iterator = queueFile.iterator();
+        return new Iterator<byte[]>() {
+          @Override public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override public byte[] next() {
+            reads.incrementAndGet();
+            return iterator.next();
+          }
+
+          @Override public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+    transporter = new Transporter(queue, records, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 4);
+    enqueueLargeMessages(1000);
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    transporter.flush().get();
+    verify(trackingAPI, times(8)).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(0);
+    // Records of batches in flight are read again, but once for every four batches rather than
+    // for each one.
+    assertThat(reads.get()).isLessThanOrEqualTo(2001);
+  }
+
+  @Test public void removesBatchesInOrder() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 2);
+    enqueueLargeMessages(200);
+
+    // Fail the first batch once the second one has been uploaded.
+    final CountDownLatch latch = new CountDownLatch(1);
+    final IOException testException = new IOException("test");
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenAnswer(new Answer<Call<Void>>() {
+      @Override public Call<Void> answer(InvocationOnMock invocation) throws Throwable {
+        BatchRequestBody body = invocation.getArgument(0);
+        if (body.records.size() == 125) {
+          assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+          return Calls.failure(testException);
+        }
+        latch.countDown();
+        return Calls.response(Response.success((Void) null));
+      }
+    });
+
+    try {
+      transporter.flush().get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isEqualTo(testException);
+    }
+    assertThat(queue.size()).isEqualTo(200);
+  }
+
+  @Test public void persistsWhileUploading() throws Exception {
+    transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build()).get();
+
+    final CountDownLatch uploadStarted = new CountDownLatch(1);
+    final CountDownLatch persisted = new CountDownLatch(1);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenAnswer(new Answer<Call<Void>>() {
+      @Override public Call<Void> answer(InvocationOnMock invocation) throws Throwable {
+        uploadStarted.countDown();
+        assertThat(persisted.await(5, TimeUnit.SECONDS)).isTrue();
+        return Calls.response(Response.success((Void) null));
+      }
+    });
+
+    Future<List<Message>> flush = transporter.flush();
+    assertThat(uploadStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    transporter.enqueue(message).get(5, TimeUnit.SECONDS);
+    persisted.countDown();
+
+    assertThat(flush.get()).hasSize(1);
+    assertThat(queue.peek()).isEqualTo(message);
+  }
+
+  @Test public void holdsMessagesUntilInitialized() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    Callable<Transporter.Backend> backend = new Callable<Transporter.Backend>() {
+      @Override public Transporter.Backend call() throws Exception {
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        return new Transporter.Backend(queue, null, trackingAPI);
+      }
+    };
+    transporter = new Transporter(backend, callback, Integer.MAX_VALUE, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    Future<Message> future = transporter.enqueue(message);
+    Thread.sleep(100);
+    assertThat(future.isDone()).isFalse();
+    assertThat(queue.size()).isEqualTo(0);
+
+    latch.countDown();
+    assertThat(future.get(5, TimeUnit.SECONDS)).isSameAs(message);
+    assertThat(queue.size()).isEqualTo(1);
+    verify(callback).success(Callback.Event.PERSIST, message);
+  }
+
+  @Test public void reportsInitializationErrors() throws Exception {
+    final IOException testException = new IOException("test");
+    Callable<Transporter.Backend> backend = new Callable<Transporter.Backend>() {
+      @Override public Transporter.Backend call() throws Exception {
+        throw testException;
+      }
+    };
+    transporter = new Transporter(backend, callback, Integer.MAX_VALUE, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    try {
+      transporter.enqueue(message).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getCause()).isSameAs(testException);
+    }
+    verify(callback).error(eq(Callback.Event.PERSIST), eq(message), any(IOException.class));
+  }
+
+  private void enqueueLargeMessages(int count) throws IOException {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    for (int i = 0; i < 100; i++) {
+      properties.put("prop_" + i, "abcdefghijklmnopqrstuvwxyz");
+    }
+    for (int i = 0; i < count; i++) {
+      queue.add(new TrackMessage.Builder().userId("userId")
+          .event("event")
+          .properties(properties)
+          .build());
+    }
+  }
+
+  @Test public void packsSmallMessages() throws Exception {
     for (int i = 0; i < 40; i++) {
       queue.add(new TrackMessage.Builder().userId("userId").event("event").build());
     }
 
     Call<Void> call = Calls.response(Response.success((Void) null));
-    when(trackingAPI.batch(any(Batch.class))).thenReturn(call);
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
 
     transporter.flush().get();
 
-    ArgumentCaptor<Batch> batchArgumentCaptor = ArgumentCaptor.forClass(Batch.class);
+    ArgumentCaptor<BatchRequestBody> batchArgumentCaptor =
+        ArgumentCaptor.forClass(BatchRequestBody.class);
     verify(trackingAPI).batch(batchArgumentCaptor.capture());
 
-    assertThat(batchArgumentCaptor.getValue().batch()).hasSize(33);
+    assertThat(batchArgumentCaptor.getValue().records).hasSize(40);
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void uploadsQueueFileRecords() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "queue");
+    QueueFile queueFile = new QueueFile.Builder(file).build();
+    queue = ObjectQueue.create(queueFile, new MessageObjectQueueConverter());
+    transporter = new Transporter(queue, queueFile, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+      queue.add(message);
+      messages.add(message);
+    }
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    List<Message> uploaded = transporter.flush().get();
+
+    ArgumentCaptor<BatchRequestBody> batchArgumentCaptor =
+        ArgumentCaptor.forClass(BatchRequestBody.class);
+    verify(trackingAPI).batch(batchArgumentCaptor.capture());
+    BatchRequestBody body = batchArgumentCaptor.getValue();
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+    assertThat(body.contentLength()).isEqualTo(buffer.size());
+    String json = buffer.readUtf8();
+    assertThat(json).startsWith("{\"batch\":[{").contains("\"sentAt\":");
+
+    assertThat(uploaded).hasSize(3);
+    for (int i = 0; i < 3; i++) {
+      assertThat(json).contains(messages.get(i).messageId());
+      assertThat(uploaded.get(i).messageId()).isEqualTo(messages.get(i).messageId());
+    }
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void uploadsMappedQueueRecords() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "queue");
+    MappedObjectQueue mappedQueue = new MappedObjectQueue.Builder(file).build();
+    queue = mappedQueue;
+    transporter = new Transporter(queue, mappedQueue.records(), trackingAPI, callback,
+        Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    transporter.enqueue(message).get();
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    List<Message> uploaded = transporter.flush().get();
+
+    ArgumentCaptor<BatchRequestBody> batchArgumentCaptor =
+        ArgumentCaptor.forClass(BatchRequestBody.class);
+    verify(trackingAPI).batch(batchArgumentCaptor.capture());
+    Buffer buffer = new Buffer();
+    batchArgumentCaptor.getValue().writeTo(buffer);
+    assertThat(buffer.readUtf8()).startsWith("{\"batch\":["
+        + new String(JsonUtils.toByteArray(message), "UTF-8")
+        + "],\"sentAt\":\"");
+    assertThat(uploaded).hasSize(1);
+    assertThat(uploaded.get(0).messageId()).isEqualTo(message.messageId());
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void uploadsBinaryQueueFileRecordsAsJson() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "queue");
+    QueueFile queueFile = new QueueFile.Builder(file).build();
+    // A JSON record left over from before the queue was switched to the binary format.
+    Message json = new TrackMessage.Builder().userId("userId").event("json").build();
+    ObjectQueue.create(queueFile, new MessageObjectQueueConverter()).add(json);
+    queue = ObjectQueue.create(queueFile, new BinaryMessageObjectQueueConverter());
+    transporter = new Transporter(queue, queueFile, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    Message binary = new TrackMessage.Builder().userId("userId").event("binary").build();
+    transporter.enqueue(binary).get();
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    List<Message> uploaded = transporter.flush().get();
+
+    ArgumentCaptor<BatchRequestBody> batchArgumentCaptor =
+        ArgumentCaptor.forClass(BatchRequestBody.class);
+    verify(trackingAPI).batch(batchArgumentCaptor.capture());
+    BatchRequestBody body = batchArgumentCaptor.getValue();
+    Buffer buffer = new Buffer();
+    body.writeTo(buffer);
+    assertThat(body.contentLength()).isEqualTo(buffer.size());
+    assertThat(buffer.readUtf8()).startsWith("{\"batch\":["
+        + new String(JsonUtils.toByteArray(json), "UTF-8")
+        + ","
+        + new String(JsonUtils.toByteArray(binary), "UTF-8")
+        + "],\"sentAt\":\"");
+    assertThat(uploaded).hasSize(2);
+    assertThat(uploaded.get(1).messageId()).isEqualTo(binary.messageId());
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void rejectsLargeMessages() throws Exception {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    for (int i = 0; i < 383; i++) {
+      properties.put("prop_" + i, "abcdefghijklmnopqrstuvwxyz");
+    }
+    Message message = new TrackMessage.Builder().userId("userId")
+        .event("event")
+        .properties(properties)
+        .build();
+
+    try {
+      transporter.enqueue(message).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(JsonUtils.MessageTooLargeException.class);
+    }
+    assertThat(queue.size()).isEqualTo(0);
+    verify(callback).error(eq(Callback.Event.PERSIST), eq(message),
+        any(JsonUtils.MessageTooLargeException.class));
+  }
+
+  @Test public void unencodableMessagesDoNotFailOthers() throws Exception {
+    // Hold back the queue, so that both messages are written together.
+    final CountDownLatch latch = new CountDownLatch(1);
+    Callable<Transporter.Backend> backend = new Callable<Transporter.Backend>() {
+      @Override public Transporter.Backend call() throws Exception {
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        return new Transporter.Backend(queue, null, trackingAPI);
+      }
+    };
+    transporter = new Transporter(backend, callback, Integer.MAX_VALUE, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    Message invalid = new TrackMessage.Builder().userId("userId")
+        .event("event")
+        .properties(Collections.<String, Object>singletonMap("revenue", Double.NaN))
+        .build();
+    Message valid = new TrackMessage.Builder().userId("userId").event("event").build();
+
+    Future<Message> invalidFuture = transporter.enqueue(invalid);
+    Future<Message> validFuture = transporter.enqueue(valid);
+    latch.countDown();
+
+    try {
+      invalidFuture.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+    }
+    assertThat(validFuture.get(5, TimeUnit.SECONDS)).isSameAs(valid);
+    assertThat(queue.size()).isEqualTo(1);
+    verify(callback).error(eq(Callback.Event.PERSIST), eq(invalid),
+        any(IllegalArgumentException.class));
+    verify(callback).success(Callback.Event.PERSIST, valid);
+  }
+
+  @Test public void shutdownWritesEnqueuedMessages() throws Exception {
+    Future<Message> future = transporter.enqueue(
+        (Message) new TrackMessage.Builder().userId("userId").event("event").build());
+
+    transporter.shutdown();
+
+    assertThat(future.isDone()).isTrue();
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test public void ignoresEmptyQueue() throws Exception {
+    assertThat(transporter.flush().get()).isEmpty();
+    verifyZeroInteractions(trackingAPI);
+  }
+
+  @Test public void flushesWhenQueueSizeReached() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, 2, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build()).get();
+    verifyZeroInteractions(trackingAPI);
+
+    transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build()).get();
+    verify(trackingAPI, timeout(1000)).batch(any(BatchRequestBody.class));
+  }
+
+  @Test public void flushesWhenQueueBytesReached() throws Exception {
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    long size = JsonUtils.sizeOf(message);
+    transporter = new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE, size * 2,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    transporter.enqueue(message).get();
+    verifyZeroInteractions(trackingAPI);
+
+    transporter.enqueue(message).get();
+    verify(trackingAPI, timeout(1000)).batch(any(BatchRequestBody.class));
+  }
+
+  @Test public void backsOffAfterFailedFlush() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, 2, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    Call<Void> failure = Calls.response(Response.<Void>error(503,
+        ResponseBody.create(MediaType.parse("application/json"), "{}")));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(failure);
+
+    for (int i = 0; i < 10; i++) {
+      transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build())
+          .get();
+    }
+    verify(trackingAPI, timeout(1000)).batch(any(BatchRequestBody.class));
+    Thread.sleep(100);
+    // The queue stayed past the threshold, but the failed flush isn't retried for every message.
+    verify(trackingAPI).batch(any(BatchRequestBody.class));
+    assertThat(queue.size()).isEqualTo(10);
+
+    Call<Void> success = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(success);
+    assertThat(transporter.flush().get()).hasSize(10);
+
+    // Once a flush succeeds, crossing the threshold triggers flushes again.
+    for (int i = 0; i < 2; i++) {
+      transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build())
+          .get();
+    }
+    verify(trackingAPI, timeout(1000).times(3)).batch(any(BatchRequestBody.class));
+  }
+
+  @Test public void measuresJsonMessagesAsTheyAreWritten() throws Exception {
+    Message message = new TrackMessage.Builder().userId("userId").event("event").build();
+    long size = JsonUtils.sizeOf(message);
+    File file = new File(temporaryFolder.getRoot(), "queue");
+    QueueFile queueFile = new QueueFile.Builder(file).build();
+    MessageObjectQueueConverter converter = new MessageObjectQueueConverter();
+    queue = ObjectQueue.create(queueFile, converter);
+    transporter = new Transporter(
+        Transporter.Backend.immediate(
+            new Transporter.Backend(queue, queueFile, converter, trackingAPI)), callback,
+        Integer.MAX_VALUE, size * 2, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    transporter.enqueue(message).get();
+    assertThat(converter.lastSize()).isEqualTo(size);
+    verifyZeroInteractions(trackingAPI);
+
+    transporter.enqueue(message).get();
+    verify(trackingAPI, timeout(1000)).batch(any(BatchRequestBody.class));
+  }
+
+  @Test public void flushesPeriodically() throws Exception {
+    transporter = new Transporter(queue, null, trackingAPI, callback, Integer.MAX_VALUE,
+        Long.MAX_VALUE, 100, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+
+    Call<Void> call = Calls.response(Response.success((Void) null));
+    when(trackingAPI.batch(any(BatchRequestBody.class))).thenReturn(call);
+
+    transporter.enqueue(new TrackMessage.Builder().userId("userId").event("event").build()).get();
+    verify(trackingAPI, timeout(1000)).batch(any(BatchRequestBody.class));
   }
 }
@@ -0,0 +1,36 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.TrackMessage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Messages shared by the benchmarks. */
+final class Fixtures {
+  private Fixtures() {
+    throw new AssertionError("No instances");
+  }
+
+  /** Returns a track message of a typical size, with a device context and a few properties. */
+  static Message newTrackMessage() {
+    Map<String, Object> device = new LinkedHashMap<>();
+    device.put("manufacturer", "Google");
+    device.put("model", "Nexus 5X");
+    Map<String, Object> context = new LinkedHashMap<>();
+    context.put("device", device);
+    context.put("locale", "en-US");
+    context.put("timezone", "America/Los_Angeles");
+
+    Map<String, Object> properties = new LinkedHashMap<>();
+    for (int i = 0; i < 10; i++) {
+      properties.put("prop_" + i, "value_" + i);
+    }
+
+    return new TrackMessage.Builder().userId("userId")
+        .anonymousId("anonymousId")
+        .event("event")
+        .context(context)
+        .properties(properties)
+        .build();
+  }
+}
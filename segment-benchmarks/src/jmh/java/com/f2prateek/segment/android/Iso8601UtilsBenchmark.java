@@ -0,0 +1,36 @@
+package com.f2prateek.segment.android;
+
+import java.io.IOException;
+import java.util.Date;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class Iso8601UtilsBenchmark {
+  Date date;
+  String formatted;
+  Buffer buffer = new Buffer();
+
+  @Setup public void setUp() {
+    date = new Date();
+    formatted = Iso8601Utils.format(date);
+  }
+
+  @Benchmark public String format() {
+    return Iso8601Utils.format(date);
+  }
+
+  @Benchmark public long formatToSink() throws IOException {
+    Iso8601Utils.format(date, buffer);
+    long size = buffer.size();
+    buffer.clear();
+    return size;
+  }
+
+  @Benchmark public Date parse() {
+    return Iso8601Utils.parse(formatted);
+  }
+}
@@ -0,0 +1,38 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.f2prateek.segment.model.TrackMessage;
+import java.io.IOException;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class JsonUtilsBenchmark {
+  Message message;
+  byte[] json;
+
+  @Setup public void setUp() throws IOException {
+    message = Fixtures.newTrackMessage();
+    json = JsonUtils.toByteArray(message);
+  }
+
+  @Benchmark public byte[] toJson() throws IOException {
+    return JsonUtils.toByteArray(message);
+  }
+
+  @Benchmark public Message fromJson() throws IOException {
+    return JsonUtils.fromJson(new Buffer().write(json));
+  }
+
+  @Benchmark public int fromJsonAndReadProperties() throws IOException {
+    TrackMessage message = (TrackMessage) JsonUtils.fromJson(new Buffer().write(json));
+    return message.properties().size();
+  }
+
+  @Benchmark public long sizeOf() throws IOException {
+    return JsonUtils.sizeOf(message);
+  }
+}
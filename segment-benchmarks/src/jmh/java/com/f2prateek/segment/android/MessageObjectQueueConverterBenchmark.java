@@ -0,0 +1,34 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.squareup.tape2.ObjectQueue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class MessageObjectQueueConverterBenchmark {
+  @Param({ "json", "binary" }) String format;
+
+  ObjectQueue.Converter<Message> converter;
+  Message message;
+
+  @Setup public void setUp() {
+    if (format.equals("binary")) {
+      converter = new BinaryMessageObjectQueueConverter();
+    } else {
+      converter = new MessageObjectQueueConverter();
+    }
+    message = Fixtures.newTrackMessage();
+  }
+
+  @Benchmark public Message roundTrip() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    converter.toStream(message, bytes);
+    return converter.from(bytes.toByteArray());
+  }
+}
@@ -0,0 +1,65 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class ObjectQueueBenchmark {
+  @Param({ "queueFile", "mapped" }) String implementation;
+
+  File file;
+  ObjectQueue<Message> queue;
+  Iterable<byte[]> records;
+
+  @Setup public void setUp() throws IOException {
+    file = File.createTempFile("segment", ".queue");
+    // Both queues expect either a missing file or a valid queue.
+    if (!file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+    if (implementation.equals("mapped")) {
+      MappedObjectQueue mappedQueue = new MappedObjectQueue.Builder(file).build();
+      queue = mappedQueue;
+      records = mappedQueue.records();
+    } else {
+      QueueFile queueFile = new QueueFile.Builder(file).build();
+      queue = ObjectQueue.create(queueFile, new MessageObjectQueueConverter());
+      records = queueFile;
+    }
+    // Enough messages to fill a batch.
+    Message message = Fixtures.newTrackMessage();
+    long size = JsonUtils.sizeOf(message);
+    for (long queued = 0; queued < JsonUtils.MAX_BATCH_SIZE; queued += size) {
+      queue.add(message);
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    queue.close();
+    if (!file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+  }
+
+  @Benchmark public long peekBatch() {
+    long size = 0;
+    for (byte[] record : records) {
+      size += record.length;
+    }
+    return size;
+  }
+
+  @Benchmark public void addAndRemove() throws IOException {
+    queue.add(Fixtures.newTrackMessage());
+    queue.remove(1);
+  }
+}
@@ -0,0 +1,54 @@
+package com.f2prateek.segment.android;
+
+import com.f2prateek.segment.model.Message;
+import com.squareup.tape2.ObjectQueue;
+import com.squareup.tape2.QueueFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class TransporterBenchmark {
+  File file;
+  ObjectQueue<Message> queue;
+  Transporter transporter;
+  Message message;
+
+  @Setup public void setUp() throws IOException {
+    file = File.createTempFile("segment", ".queue");
+    // QueueFile expects either a missing file or a valid queue.
+    if (!file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+    QueueFile queueFile = new QueueFile.Builder(file).build();
+    queue = ObjectQueue.create(queueFile, new MessageObjectQueueConverter());
+    // Uploads are never triggered, so no TrackingAPI is needed.
+    transporter = new Transporter(queue, queueFile, null, null, Integer.MAX_VALUE, Long.MAX_VALUE,
+        Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1);
+    message = Fixtures.newTrackMessage();
+  }
+
+  @TearDown(Level.Iteration) public void clearQueue() throws IOException {
+    synchronized (queue) {
+      queue.clear();
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException, InterruptedException {
+    transporter.shutdown();
+    queue.close();
+    if (!file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+  }
+
+  @Benchmark public Message enqueue() throws ExecutionException, InterruptedException {
+    return transporter.enqueue(message).get();
+  }
+}
@@ -0,0 +1,32 @@
+package com.f2prateek.segment.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class MessageBuilderBenchmark {
+  Map<String, Object> context;
+  Map<String, Object> properties;
+
+  @Setup public void setUp() {
+    context = new LinkedHashMap<>();
+    context.put("library", "segment-android");
+    context.put("locale", "en-US");
+    properties = new LinkedHashMap<>();
+    for (int i = 0; i < 10; i++) {
+      properties.put("prop_" + i, "value_" + i);
+    }
+  }
+
+  @Benchmark public TrackMessage build() {
+    return new TrackMessage.Builder().userId("userId")
+        .event("event")
+        .context(context)
+        .properties(properties)
+        .build();
+  }
+}
@@ -9,7 +9,6 @@ import java.util.Map;
 import static com.f2prateek.segment.model.Utils.assertNotNull;
 import static com.f2prateek.segment.model.Utils.assertNotNullOrEmpty;
 import static com.f2prateek.segment.model.Utils.immutableCopyOf;
-import static com.f2prateek.segment.model.Utils.isNullOrEmpty;
 
 /**
  * The group API call is how you associate an individual user with a group—be it a company,
@@ -154,7 +153,7 @@ public final class GroupMessage extends Message {
       assertNotNullOrEmpty(groupId, "groupId");
 
       Map<String, Object> traits = this.traits;
-      if (isNullOrEmpty(traits)) {
+      if (traits == null) {
         traits = Collections.emptyMap();
       }
 
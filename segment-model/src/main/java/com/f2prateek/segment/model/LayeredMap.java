@@ -0,0 +1,145 @@
+package com.f2prateek.segment.model;
+
+import android.support.annotation.NonNull;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.f2prateek.segment.model.Utils.assertNotNull;
+import static com.f2prateek.segment.model.Utils.immutableCopyOf;
+
+/**
+ * An immutable map made of a layer of entries on top of a base map. Entries in the top layer take
+ * precedence over entries in the base with the same key.
+ * <p>
+ * The base is shared by reference, so values that are common to many messages (such as the
+ * device context) can be combined with the values specific to each message without copying them.
+ * Messages keep layered maps as they are rather than copying them.
+ */
+public final class LayeredMap<K, V> extends AbstractMap<K, V> {
+  private final Map<K, V> base;
+  private final Map<K, V> layer;
+  private final int size;
+
+  private LayeredMap(Map<K, V> base, Map<K, V> layer) {
+    this.base = base;
+    this.layer = layer;
+    int size = base.size();
+    for (K key : layer.keySet()) {
+      if (!base.containsKey(key)) {
+        size++;
+      }
+    }
+    this.size = size;
+  }
+
+  /** Returns a layered map with a copy of the entries in {@code map}. */
+  public static @NonNull <K, V> LayeredMap<K, V> copyOf(@NonNull Map<K, V> map) {
+    assertNotNull(map, "map");
+    if (map instanceof LayeredMap) {
+      return (LayeredMap<K, V>) map;
+    }
+    return new LayeredMap<>(Collections.<K, V>emptyMap(), immutableCopyOf(map));
+  }
+
+  /**
+   * Returns a map with a copy of the entries in {@code map} on top of the entries in this map. This
+   * map is shared, not copied.
+   */
+  public @NonNull LayeredMap<K, V> plus(@NonNull Map<K, V> map) {
+    assertNotNull(map, "map");
+    if (map.isEmpty()) {
+      return this;
+    }
+    return new LayeredMap<>(this, immutableCopyOf(map));
+  }
+
+  /** Returns the map that this map's own entries are layered on top of. */
+  public @NonNull Map<K, V> base() {
+    return base;
+  }
+
+  /** Returns the entries added on top of {@link #base()}. */
+  public @NonNull Map<K, V> layer() {
+    return layer;
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return layer.containsKey(key) || base.containsKey(key);
+  }
+
+  @Override public V get(Object key) {
+    if (layer.containsKey(key)) {
+      return layer.get(key);
+    }
+    return base.get(key);
+  }
+
+  /**
+   * Entries are returned in the order of the base map, followed by the entries that are only in
+   * the top layer.
+   */
+  @Override public @NonNull Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override public @NonNull Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override public int size() {
+        return size;
+      }
+    };
+  }
+
+  private final class EntryIterator implements Iterator<Entry<K, V>> {
+    private final Iterator<Entry<K, V>> baseEntries = base.entrySet().iterator();
+    private final Iterator<Entry<K, V>> layerEntries = layer.entrySet().iterator();
+    private Entry<K, V> next;
+
+    @Override public boolean hasNext() {
+      if (next == null) {
+        next = computeNext();
+      }
+      return next != null;
+    }
+
+    @Override public Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entry<K, V> entry = next;
+      next = null;
+      return entry;
+    }
+
+    private Entry<K, V> computeNext() {
+      if (baseEntries.hasNext()) {
+        Entry<K, V> entry = baseEntries.next();
+        K key = entry.getKey();
+        if (layer.containsKey(key)) {
+          return new SimpleImmutableEntry<>(key, layer.get(key));
+        }
+        return entry;
+      }
+      while (layerEntries.hasNext()) {
+        Entry<K, V> entry = layerEntries.next();
+        if (!base.containsKey(entry.getKey())) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
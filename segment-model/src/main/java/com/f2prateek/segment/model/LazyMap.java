@@ -0,0 +1,79 @@
+package com.f2prateek.segment.model;
+
+import android.support.annotation.NonNull;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static com.f2prateek.segment.model.Utils.assertNotNull;
+
+/**
+ * An immutable map whose entries are loaded the first time they are read. This lets messages
+ * that were read from storage be inspected without decoding maps that are never used.
+ * <p>
+ * Messages keep lazy maps as they are rather than copying them, so building a message does not
+ * load its entries.
+ */
+public final class LazyMap<K, V> extends AbstractMap<K, V> {
+  /** Loads the entries of a {@link LazyMap}. */
+  public interface Loader<K, V> {
+    /**
+     * Returns the entries of the map. This is called at most once, by the first thread to read
+     * the map, and the returned map must not be modified afterwards.
+     */
+    @NonNull Map<K, V> load();
+  }
+
+  private final Loader<K, V> loader;
+  private volatile Map<K, V> map;
+
+  private LazyMap(Loader<K, V> loader) {
+    this.loader = loader;
+  }
+
+  /** Returns a map whose entries will be loaded by {@code loader} when they are first read. */
+  public static @NonNull <K, V> LazyMap<K, V> of(@NonNull Loader<K, V> loader) {
+    return new LazyMap<>(assertNotNull(loader, "loader"));
+  }
+
+  /** Returns the loader of this map's entries. */
+  public @NonNull Loader<K, V> loader() {
+    return loader;
+  }
+
+  /** Returns true if this map's entries have been loaded. */
+  public boolean isLoaded() {
+    return map != null;
+  }
+
+  private Map<K, V> map() {
+    Map<K, V> result = map;
+    if (result == null) {
+      synchronized (this) {
+        result = map;
+        if (result == null) {
+          result = Collections.unmodifiableMap(assertNotNull(loader.load(), "loaded map"));
+          map = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override public int size() {
+    return map().size();
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return map().containsKey(key);
+  }
+
+  @Override public V get(Object key) {
+    return map().get(key);
+  }
+
+  @Override public @NonNull Set<Entry<K, V>> entrySet() {
+    return map().entrySet();
+  }
+}
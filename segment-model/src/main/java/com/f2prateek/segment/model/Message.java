@@ -7,7 +7,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.UUID;
 
 import static com.f2prateek.segment.model.Utils.assertNotNull;
 import static com.f2prateek.segment.model.Utils.assertNotNullOrEmpty;
@@ -78,6 +77,7 @@ public abstract class Message {
     private Map<String, Object> integrationsBuilder;
     private String userId;
     private String anonymousId;
+    private MessageIdGenerator messageIdGenerator;
 
     Builder(@NonNull Type type) {
       this.type = type;
@@ -105,6 +105,15 @@ public abstract class Message {
       return self();
     }
 
+    /**
+     * Set the generator used to create a Message ID if one isn't provided. Uses {@link
+     * MessageIdGenerator#TIME_ORDERED} by default.
+     */
+    public @NonNull V messageIdGenerator(@NonNull MessageIdGenerator messageIdGenerator) {
+      this.messageIdGenerator = assertNotNull(messageIdGenerator, "messageIdGenerator");
+      return self();
+    }
+
     /**
      * Set a timestamp for the event. By default, the current timestamp is used, but you may
      * override it for historical import.
@@ -134,6 +143,14 @@ public abstract class Message {
       return self();
     }
 
+    /**
+     * Returns the context set on this builder, or copied from the message it was created from. This
+     * lets the context be extended without building the message first.
+     */
+    public @Nullable Map<String, Object> context() {
+      return context;
+    }
+
     /**
      * Set whether this message is sent to the specified integration or not. 'All' is a special key
      * that applies when no key for a specific integration is found.
@@ -220,7 +237,11 @@ public abstract class Message {
           Collections.<String, Object>emptyMap() : immutableCopyOf(integrationsBuilder);
 
       if (isNullOrEmpty(messageId)) {
-        messageId = UUID.randomUUID().toString();
+        MessageIdGenerator messageIdGenerator = this.messageIdGenerator;
+        if (messageIdGenerator == null) {
+          messageIdGenerator = MessageIdGenerator.TIME_ORDERED;
+        }
+        messageId = assertNotNullOrEmpty(messageIdGenerator.generate(), "generated messageId");
       }
 
       if (timestamp == null) {
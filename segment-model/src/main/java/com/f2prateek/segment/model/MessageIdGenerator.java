@@ -0,0 +1,19 @@
+package com.f2prateek.segment.model;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Generates IDs for messages that aren't given one.
+ *
+ * @see Message.Builder#messageIdGenerator(MessageIdGenerator)
+ */
+public interface MessageIdGenerator {
+  /**
+   * Generates UUIDs whose leading bits are the current time in milliseconds, followed by random
+   * bits. IDs generated in later milliseconds sort after earlier ones. This is the default.
+   */
+  MessageIdGenerator TIME_ORDERED = new TimeOrderedMessageIdGenerator();
+
+  /** Returns a new unique message ID. */
+  @NonNull String generate();
+}
@@ -9,7 +9,6 @@ import java.util.Map;
 import static com.f2prateek.segment.model.Utils.assertNotNull;
 import static com.f2prateek.segment.model.Utils.assertNotNullOrEmpty;
 import static com.f2prateek.segment.model.Utils.immutableCopyOf;
-import static com.f2prateek.segment.model.Utils.isNullOrEmpty;
 
 /**
  * The screen call lets you record whenever a user sees a screen, along with any properties about
@@ -152,7 +151,7 @@ public final class ScreenMessage extends Message {
       assertNotNullOrEmpty(name, "name");
 
       Map<String, Object> properties = this.properties;
-      if (isNullOrEmpty(properties)) {
+      if (properties == null) {
         properties = Collections.emptyMap();
       }
 
@@ -0,0 +1,37 @@
+package com.f2prateek.segment.model;
+
+import android.support.annotation.NonNull;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates version 7 UUIDs: 48 bits of milliseconds since the epoch followed by 74 random bits.
+ * Each thread draws from its own generators, seeded securely once, so threads don't contend on a
+ * shared {@link SecureRandom} for every message. A {@link Random} only has 48 bits of state, so
+ * each thread uses two independently seeded ones, which together can produce all 74 bits.
+ */
+final class TimeOrderedMessageIdGenerator implements MessageIdGenerator {
+  private static final SecureRandom SEED_RANDOM = new SecureRandom();
+  private static final ThreadLocal<Random[]> RANDOMS = new ThreadLocal<Random[]>() {
+    @Override protected Random[] initialValue() {
+      return new Random[] {
+          new Random(SEED_RANDOM.nextLong()), new Random(SEED_RANDOM.nextLong())
+      };
+    }
+  };
+
+  @Override public @NonNull String generate() {
+    Random[] randoms = RANDOMS.get();
+    // 42 bits from the first generator, and 32 from the second.
+    long first = randoms[0].nextLong();
+    long second = randoms[1].nextInt() & 0xffffffffL;
+    long mostSigBits = System.currentTimeMillis() << 16 // Time.
+        | 0x7000L // Version.
+        | first >>> 52;
+    long leastSigBits = 0x8000000000000000L // Variant.
+        | (first & 0x3fffffffL) << 32
+        | second;
+    return new UUID(mostSigBits, leastSigBits).toString();
+  }
+}
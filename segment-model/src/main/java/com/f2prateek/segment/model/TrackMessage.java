@@ -9,7 +9,6 @@ import java.util.Map;
 import static com.f2prateek.segment.model.Utils.assertNotNull;
 import static com.f2prateek.segment.model.Utils.assertNotNullOrEmpty;
 import static com.f2prateek.segment.model.Utils.immutableCopyOf;
-import static com.f2prateek.segment.model.Utils.isNullOrEmpty;
 
 /**
  * The track API call is how you record any actions your users perform, along with any properties
@@ -152,7 +151,7 @@ public final class TrackMessage extends Message {
       assertNotNullOrEmpty(event, "event");
 
       Map<String, Object> properties = this.properties;
-      if (isNullOrEmpty(properties)) {
+      if (properties == null) {
         properties = Collections.emptyMap();
       }
 
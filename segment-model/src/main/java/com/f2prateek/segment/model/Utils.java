@@ -59,8 +59,11 @@ final class Utils {
     return list == null || list.size() == 0;
   }
 
-  /** Returns an immutable copy of the provided map. */
+  /** Returns an immutable copy of the provided map. Layered and lazy maps are immutable already. */
   static @NonNull <K, V> Map<K, V> immutableCopyOf(@NonNull Map<K, V> map) {
+    if (map instanceof LayeredMap || map instanceof LazyMap) {
+      return map;
+    }
     return Collections.unmodifiableMap(new LinkedHashMap<>(map));
   }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.f2prateek.segment.model;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LayeredMapTest {
+  @Test public void layersEntries() {
+    LayeredMap<String, Object> base =
+        LayeredMap.copyOf(ImmutableMap.<String, Object>of("a", 1, "b", 2));
+    Map<String, Object> map = base.plus(ImmutableMap.<String, Object>of("b", 3, "c", 4));
+
+    assertThat(map).hasSize(3);
+    assertThat(map.get("a")).isEqualTo(1);
+    assertThat(map.get("b")).isEqualTo(3);
+    assertThat(map.get("c")).isEqualTo(4);
+    assertThat(map.containsKey("d")).isFalse();
+    assertThat(map.keySet()).containsExactly("a", "b", "c");
+    assertThat(map).isEqualTo(ImmutableMap.of("a", 1, "b", 3, "c", 4));
+    assertThat(base).isEqualTo(ImmutableMap.of("a", 1, "b", 2));
+  }
+
+  @Test public void exposesLayers() {
+    LayeredMap<String, Object> base = LayeredMap.copyOf(ImmutableMap.<String, Object>of("a", 1));
+    LayeredMap<String, Object> map = base.plus(ImmutableMap.<String, Object>of("b", 2));
+
+    assertThat(map.base()).isSameAs(base);
+    assertThat(map.layer()).isEqualTo(ImmutableMap.of("b", 2));
+    assertThat(base.base()).isEmpty();
+    assertThat(base.layer()).isEqualTo(ImmutableMap.of("a", 1));
+  }
+
+  @Test public void copiesLayers() {
+    Map<String, Object> layer = new LinkedHashMap<>();
+    layer.put("a", 1);
+    LayeredMap<String, Object> map =
+        LayeredMap.copyOf(ImmutableMap.<String, Object>of("b", 2)).plus(layer);
+    layer.put("a", 2);
+
+    assertThat(map.get("a")).isEqualTo(1);
+  }
+
+  @Test public void isImmutable() {
+    Map<String, Object> map = LayeredMap.copyOf(ImmutableMap.<String, Object>of("a", 1));
+    try {
+      map.put("b", 2);
+      fail();
+    } catch (UnsupportedOperationException ignored) {
+    }
+    try {
+      map.entrySet().iterator().next().setValue(2);
+      fail();
+    } catch (UnsupportedOperationException ignored) {
+    }
+  }
+
+  @Test public void messagesShareLayeredMaps() {
+    LayeredMap<String, Object> context = LayeredMap.copyOf(ImmutableMap.<String, Object>of("a", 1));
+    Message message = new TrackMessage.Builder().userId("userId")
+        .event("event")
+        .context(context)
+        .build();
+
+    assertThat(message.context()).isSameAs(context);
+  }
+}
@@ -0,0 +1,61 @@
+package com.f2prateek.segment.model;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LazyMapTest {
+  @Test public void loadsOnceWhenRead() {
+    final AtomicInteger loads = new AtomicInteger();
+    LazyMap<String, Object> map = LazyMap.of(new LazyMap.Loader<String, Object>() {
+      @Override public Map<String, Object> load() {
+        loads.incrementAndGet();
+        return ImmutableMap.<String, Object>of("a", 1, "b", 2);
+      }
+    });
+    assertThat(map.isLoaded()).isFalse();
+    assertThat(loads.get()).isEqualTo(0);
+
+    assertThat(map.get("a")).isEqualTo(1);
+    assertThat(map.isLoaded()).isTrue();
+    assertThat(map).hasSize(2);
+    assertThat(map.keySet()).containsExactly("a", "b");
+    assertThat(map).isEqualTo(ImmutableMap.of("a", 1, "b", 2));
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test public void immutable() {
+    LazyMap<String, Object> map = LazyMap.of(new LazyMap.Loader<String, Object>() {
+      @Override public Map<String, Object> load() {
+        return ImmutableMap.<String, Object>of("a", 1);
+      }
+    });
+    try {
+      map.put("b", 2);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test public void messagesKeepLazyMaps() {
+    LazyMap<String, Object> properties = LazyMap.of(new LazyMap.Loader<String, Object>() {
+      @Override public Map<String, Object> load() {
+        throw new AssertionError("loaded");
+      }
+    });
+    Map<String, Object> context = LazyMap.of(properties.loader());
+
+    TrackMessage message = new TrackMessage.Builder().event("event")
+        .userId("userId")
+        .context(context)
+        .properties(properties)
+        .build();
+
+    assertThat(message.properties()).isSameAs(properties);
+    assertThat(message.context()).isSameAs(context);
+  }
+}
@@ -59,6 +59,15 @@ public class MessageBuilderTest {
     assertThat(message.messageId()).isEqualTo("foo");
   }
 
+  @Test public void messageIdGeneratorCanBeProvided(MessageBuilder builder) {
+    Message message = builder.get().userId("userId").messageIdGenerator(new MessageIdGenerator() {
+      @Override public String generate() {
+        return "foo";
+      }
+    }).build();
+    assertThat(message.messageId()).isEqualTo("foo");
+  }
+
   @Test public void defaultAnonymousIdIsNotGenerated(MessageBuilder builder) {
     Message message = builder.get().userId("foo").build();
     assertThat(message.anonymousId()).isNull();
@@ -171,6 +180,16 @@ public class MessageBuilderTest {
     assertThat(message.integrations()).isEqualTo(ImmutableMap.of());
   }
 
+  @Test public void contextCanBeRead(MessageBuilder builder) {
+    Message.Builder<?, ?> messageBuilder = builder.get().userId("userId");
+    assertThat(messageBuilder.context()).isNull();
+
+    messageBuilder.context(ImmutableMap.<String, Object>of("foo", "bar"));
+    assertThat(messageBuilder.context()).isEqualTo(ImmutableMap.of("foo", "bar"));
+    assertThat(messageBuilder.build().toBuilder().context())
+        .isEqualTo(ImmutableMap.of("foo", "bar"));
+  }
+
   @Test public void integrations(MessageBuilder builder) {
     Message message = builder.get()
         .userId("userId")
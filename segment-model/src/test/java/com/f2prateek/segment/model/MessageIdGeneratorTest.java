@@ -0,0 +1,36 @@
+package com.f2prateek.segment.model;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageIdGeneratorTest {
+  @Test public void timeOrderedIdsAreVersion7Uuids() {
+    long before = System.currentTimeMillis();
+    UUID uuid = UUID.fromString(MessageIdGenerator.TIME_ORDERED.generate());
+    long after = System.currentTimeMillis();
+
+    assertThat(uuid.version()).isEqualTo(7);
+    assertThat(uuid.variant()).isEqualTo(2);
+    long millis = uuid.getMostSignificantBits() >>> 16;
+    assertThat(millis).isBetween(before, after);
+  }
+
+  @Test public void timeOrderedIdsAreOrdered() throws Exception {
+    String first = MessageIdGenerator.TIME_ORDERED.generate();
+    Thread.sleep(2);
+    String second = MessageIdGenerator.TIME_ORDERED.generate();
+
+    assertThat(first.compareTo(second)).isLessThan(0);
+  }
+
+  @Test public void timeOrderedIdsAreUnique() {
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < 10000; i++) {
+      assertThat(ids.add(MessageIdGenerator.TIME_ORDERED.generate())).isTrue();
+    }
+  }
+}
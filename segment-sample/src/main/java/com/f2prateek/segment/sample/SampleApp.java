@@ -2,9 +2,11 @@ package com.f2prateek.segment.sample;
 
 import android.app.Application;
 import com.f2prateek.segment.android.ContextInterceptor;
+import com.f2prateek.segment.android.ExecutorInterceptor;
 import com.f2prateek.segment.android.Segment;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
 
 public class SampleApp extends Application {
   @Override public void onCreate() {
@@ -14,7 +16,9 @@ public class SampleApp extends Application {
     Segment segment = new Segment.Builder() //
         .writeKey("5m6gbdgho6") //
         .context(this) //
+        .interceptor(ExecutorInterceptor.with(Executors.newSingleThreadExecutor())) //
         .interceptor(ContextInterceptor.with(this)) //
+        .asyncInitialization(true) //
         .build();
 
     Map<String, Object> properties = new LinkedHashMap<>();